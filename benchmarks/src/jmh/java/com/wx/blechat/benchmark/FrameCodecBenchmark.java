@@ -0,0 +1,76 @@
+package com.wx.blechat.benchmark;
+
+import com.wx.blechat.BLEFrameCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fragmentation and reassembly of a BLE transfer message, per whole message
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class FrameCodecBenchmark {
+
+    @Param({"23", "247"})
+    public int mMtu;
+
+    @Param({"1024"})
+    public int mSize;
+
+    private byte[] mMessage;
+    private byte[][] mFragments;
+    private BLEFrameCodec.Encoder mEncoder;
+    private BLEFrameCodec.Decoder mDecoder;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mMessage = new byte[mSize];
+        new Random(1).nextBytes(mMessage);
+        mEncoder = new BLEFrameCodec.Encoder(mMtu - 3);
+        mEncoder.begin(mMessage);
+        List<byte[]> fragments = new ArrayList<>();
+        while (mEncoder.hasNext()) {
+            fragments.add(mEncoder.next());
+        }
+        mFragments = fragments.toArray(new byte[fragments.size()][]);
+        mDecoder = new BLEFrameCodec.Decoder(new BLEFrameCodec.Decoder.Listener() {
+            @Override
+            public void onMessage(byte[] buffer, int offset, int length) {
+                mBlackhole.consume(length);
+            }
+
+            @Override
+            public void onError(String error) {
+                throw new IllegalStateException(error);
+            }
+        });
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        mEncoder.begin(mMessage);
+        while (mEncoder.hasNext()) {
+            blackhole.consume(mEncoder.next());
+        }
+    }
+
+    @Benchmark
+    public void decode() {
+        for (byte[] fragment : mFragments) {
+            mDecoder.decode(fragment);
+        }
+    }
+}
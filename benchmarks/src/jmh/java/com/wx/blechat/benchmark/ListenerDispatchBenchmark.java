@@ -0,0 +1,98 @@
+package com.wx.blechat.benchmark;
+
+import com.wx.blechat.BLEListenerList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+
+/**
+ * Firing a chat event to the registered listeners. The original notifyChatListeners()
+ * iterated an ArrayList and switched on an action enum with an Object argument, the helpers
+ * now call a typed method per event over a BLEListenerList array.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class ListenerDispatchBenchmark {
+
+    interface ChatListener {
+        void onMessage(String msg);
+
+        void onData(byte[] data);
+
+        void onInfo(String info);
+    }
+
+    enum Action {
+        MESSAGE, DATA, INFO
+    }
+
+    static class CountingListener implements ChatListener {
+        int mCount;
+
+        @Override
+        public void onMessage(String msg) {
+            mCount += msg.length();
+        }
+
+        @Override
+        public void onData(byte[] data) {
+            mCount += data.length;
+        }
+
+        @Override
+        public void onInfo(String info) {
+            mCount++;
+        }
+    }
+
+    @Param({"1", "4", "16"})
+    public int mListenerCount;
+
+    private final ArrayList<ChatListener> mLegacyListeners = new ArrayList<>();
+    private final BLEListenerList<ChatListener> mListeners = new BLEListenerList<>(ChatListener.class);
+    private final String mMessage = "Hello! Are you there?";
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < mListenerCount; i++) {
+            CountingListener listener = new CountingListener();
+            mLegacyListeners.add(listener);
+            mListeners.add(listener);
+        }
+    }
+
+    @Benchmark
+    public void legacyNotify() {
+        notifyChatListeners(Action.MESSAGE, mMessage);
+    }
+
+    @Benchmark
+    public void typedNotify() {
+        for (ChatListener listener : mListeners.array()) {
+            listener.onMessage(mMessage);
+        }
+    }
+
+    private void notifyChatListeners(Action action, Object data) {
+        for (ChatListener listener : mLegacyListeners) {
+            switch (action) {
+                case MESSAGE:
+                    listener.onMessage((String) data);
+                    break;
+                case DATA:
+                    listener.onData((byte[]) data);
+                    break;
+                case INFO:
+                    listener.onInfo((String) data);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.wx.blechat.benchmark;
+
+import com.wx.blechat.BLECompression;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+/**
+ * Encoding of chat messages: send(String) turns them into bytes, onCharacteristicWriteRequest()
+ * decodes them back. The charset name lookup of the original code is measured against the
+ * Charset constant, and the compression stage against both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class MessageEncodingBenchmark {
+
+    @Param({"short", "long"})
+    public String mMessageKind;
+
+    private String mMessage;
+    private byte[] mEncoded;
+    private byte[] mCompressed;
+    private BLECompression mCompression;
+
+    @Setup
+    public void setUp() {
+        if ("short".equals(mMessageKind)) {
+            mMessage = "Hello! Are you there?";
+        } else {
+            mMessage = "{\"id\":42,\"type\":\"message\",\"text\":\"We are meeting at the station "
+                    + "tomorrow morning, call me when you are free. Señal débil aquí 📶\"}";
+        }
+        mEncoded = mMessage.getBytes(StandardCharsets.UTF_8);
+        mCompression = new BLECompression();
+        mCompressed = mCompression.encode(mEncoded);
+    }
+
+    @Benchmark
+    public byte[] encodeDefaultCharset() {
+        return mMessage.getBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeUtf8() {
+        return mMessage.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String decodeCharsetName() throws UnsupportedEncodingException {
+        return new String(mEncoded, "UTF-8");
+    }
+
+    @Benchmark
+    public String decodeUtf8() {
+        return new String(mEncoded, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeUtf8Compressed() {
+        return mCompression.encode(mMessage.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String decodeUtf8Compressed() throws DataFormatException {
+        return new String(mCompression.decode(mCompressed), StandardCharsets.UTF_8);
+    }
+}
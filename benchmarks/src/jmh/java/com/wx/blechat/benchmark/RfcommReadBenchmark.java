@@ -0,0 +1,68 @@
+package com.wx.blechat.benchmark;
+
+import com.wx.blechat.BLEBuffer;
+import com.wx.blechat.BLEBufferPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Receive loop of the RFCOMM socket, per 64 KB received. The original loop allocated a new
+ * 1 KB array per read, the pooled one reuses BLEBuffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class RfcommReadBenchmark {
+
+    private static final int STREAM_SIZE = 64 * 1024;
+
+    private byte[] mData;
+    private final BLEBufferPool mPool = new BLEBufferPool();
+
+    @Setup
+    public void setUp() {
+        mData = new byte[STREAM_SIZE];
+        new Random(1).nextBytes(mData);
+    }
+
+    @Benchmark
+    public void allocatePerRead(Blackhole blackhole) throws IOException {
+        InputStream is = new ByteArrayInputStream(mData);
+        int bytesRead;
+        do {
+            byte[] buffer = new byte[1024];
+            bytesRead = is.read(buffer);
+            if (bytesRead > 0) {
+                blackhole.consume(buffer);
+            }
+        } while (bytesRead >= 0);
+    }
+
+    @Benchmark
+    public void pooledBuffers(Blackhole blackhole) throws IOException {
+        InputStream is = new ByteArrayInputStream(mData);
+        int bytesRead;
+        do {
+            BLEBuffer buffer = mPool.acquire();
+            try {
+                bytesRead = is.read(buffer.array());
+                if (bytesRead > 0) {
+                    buffer.setSlice(0, bytesRead);
+                    blackhole.consume(buffer);
+                }
+            } finally {
+                buffer.release();
+            }
+        } while (bytesRead >= 0);
+    }
+}
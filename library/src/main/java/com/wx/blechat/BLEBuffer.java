@@ -0,0 +1,138 @@
+package com.wx.blechat;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted slice of a byte array, usually taken from a {@link BLEBufferPool}.
+ * <p>
+ * The valid bytes are array()[offset() .. offset() + length()). Whoever keeps the buffer
+ * beyond the call it was handed in must retain() it, and release() it when done, so the
+ * array goes back to its pool once nobody uses it.
+ */
+public class BLEBuffer {
+    private final byte[] mArray;
+    private final BLEBufferPool mPool;
+    // Owner of the reference count of a slice(), null otherwise
+    private final BLEBuffer mParent;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private int mOffset;
+    private int mLength;
+
+    /**
+     * Releases the buffer when run. Useful to release it after the messages already posted
+     * to a Handler have been processed.
+     */
+    private final Runnable mReleaser = new Runnable() {
+        @Override
+        public void run() {
+            release();
+        }
+    };
+
+    BLEBuffer(byte[] array, BLEBufferPool pool) {
+        this(array, pool, null);
+    }
+
+    private BLEBuffer(byte[] array, BLEBufferPool pool, BLEBuffer parent) {
+        mArray = array;
+        mPool = pool;
+        mParent = parent;
+    }
+
+    /**
+     * Wraps an array that doesn't belong to any pool
+     */
+    public static BLEBuffer wrap(byte[] array, int offset, int length) {
+        BLEBuffer buffer = new BLEBuffer(array, null);
+        buffer.mRefCount.set(1);
+        buffer.setSlice(offset, length);
+        return buffer;
+    }
+
+    public byte[] array() {
+        return mArray;
+    }
+
+    public int offset() {
+        return mOffset;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int capacity() {
+        return mArray.length;
+    }
+
+    /**
+     * Sets the valid bytes of the array
+     */
+    public void setSlice(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > mArray.length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length);
+        }
+        mOffset = offset;
+        mLength = length;
+    }
+
+    /**
+     * Returns a view of part of the array, without copying it. The view shares the reference
+     * count of this buffer: it's valid as long as this buffer is, and retaining or releasing
+     * it retains or releases this buffer.
+     */
+    public BLEBuffer slice(int offset, int length) {
+        BLEBuffer slice = new BLEBuffer(mArray, null, mParent != null ? mParent : this);
+        slice.setSlice(offset, length);
+        return slice;
+    }
+
+    /**
+     * @return a copy of the valid bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(mArray, mOffset, mOffset + mLength);
+    }
+
+    public BLEBuffer retain() {
+        if (mParent != null) {
+            mParent.retain();
+            return this;
+        }
+        if (mRefCount.getAndIncrement() <= 0) {
+            mRefCount.getAndDecrement();
+            throw new IllegalStateException("Buffer already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        if (mParent != null) {
+            mParent.release();
+            return;
+        }
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            if (mPool != null) {
+                mPool.recycle(this);
+            }
+        } else if (refCount < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("Buffer released too many times");
+        }
+    }
+
+    public Runnable getReleaser() {
+        return mReleaser;
+    }
+
+    /**
+     * Called by the pool when the buffer is handed out again
+     */
+    void reuse() {
+        mRefCount.set(1);
+        mOffset = 0;
+        mLength = 0;
+    }
+}
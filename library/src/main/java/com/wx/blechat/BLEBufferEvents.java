@@ -0,0 +1,11 @@
+package com.wx.blechat;
+
+/**
+ * Optional interface for chat listeners that want the received data without any copy.
+ * <p>
+ * Listeners implementing it get onData(BLEBuffer) instead of onData(byte[]). The buffer is
+ * only valid during the call, retain() it to keep it and release() it when done.
+ */
+public interface BLEBufferEvents {
+    void onData(BLEBuffer buffer);
+}
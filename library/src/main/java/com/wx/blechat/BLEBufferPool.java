@@ -0,0 +1,55 @@
+package com.wx.blechat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of fixed size {@link BLEBuffer}s for the receive loops.
+ * <p>
+ * At most maxPooled buffers are kept for reuse. If they are all in use, acquire() allocates
+ * a new one instead of blocking the reader, and the extra buffers are left to the GC when
+ * released and the pool is already full.
+ */
+public class BLEBufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_MAX_POOLED = 16;
+
+    private final int mBufferSize;
+    private final ArrayBlockingQueue<BLEBuffer> mFree;
+
+    public BLEBufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    public BLEBufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mFree = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * @return a buffer with a reference count of 1 and an empty slice
+     */
+    public BLEBuffer acquire() {
+        BLEBuffer buffer = mFree.poll();
+        if (buffer == null) {
+            buffer = new BLEBuffer(new byte[mBufferSize], this);
+        }
+        buffer.reuse();
+        return buffer;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return number of buffers ready to be reused
+     */
+    public int getPooledCount() {
+        return mFree.size();
+    }
+
+    void recycle(BLEBuffer buffer) {
+        mFree.offer(buffer);
+    }
+}
@@ -0,0 +1,142 @@
+package com.wx.blechat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides in which thread the events of the helpers reach their listeners.
+ * <ul>
+ * <li>{@link #mainThread()}: the main looper, the default. Convenient for UI code.</li>
+ * <li>{@link #backgroundThread(String)}: a dedicated looper thread, so stream processing
+ * never competes with UI rendering.</li>
+ * <li>{@link #executor(Executor)}: any caller supplied Executor.</li>
+ * <li>{@link #direct()}: right in the Bluetooth callback thread. The fastest, but listeners
+ * must return quickly.</li>
+ * </ul>
+ * Data events should go through a {@link DataBatcher}: consecutive data events are delivered
+ * in a single task, without allocating a Runnable per event.
+ */
+public class BLECallbackDispatcher implements Executor {
+
+    public interface DataListener {
+        void onData(byte[] data);
+    }
+
+    private final Executor mExecutor;
+    private final HandlerThread mThread;
+
+    private BLECallbackDispatcher(Executor executor, HandlerThread thread) {
+        mExecutor = executor;
+        mThread = thread;
+    }
+
+    public static BLECallbackDispatcher mainThread() {
+        return new BLECallbackDispatcher(new HandlerExecutor(new Handler(Looper.getMainLooper())), null);
+    }
+
+    /**
+     * Starts a new looper thread for the callbacks. Call {@link #quit()} when it's no
+     * longer needed.
+     */
+    public static BLECallbackDispatcher backgroundThread(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        return new BLECallbackDispatcher(new HandlerExecutor(new Handler(thread.getLooper())), thread);
+    }
+
+    public static BLECallbackDispatcher executor(Executor executor) {
+        return new BLECallbackDispatcher(executor, null);
+    }
+
+    public static BLECallbackDispatcher direct() {
+        return new BLECallbackDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        }, null);
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        mExecutor.execute(runnable);
+    }
+
+    /**
+     * Stops the looper thread started by backgroundThread(). No-op for the other kinds.
+     */
+    public void quit() {
+        if (mThread != null) {
+            mThread.quitSafely();
+        }
+    }
+
+    public DataBatcher newDataBatcher(DataListener listener) {
+        return new DataBatcher(listener);
+    }
+
+    /**
+     * Queues data events and delivers them in order. A single task is scheduled per burst,
+     * and it delivers every event queued until it runs out of them.
+     */
+    public class DataBatcher implements Runnable {
+        private final DataListener mListener;
+        private final ArrayDeque<byte[]> mPending = new ArrayDeque<>();
+        private boolean mScheduled = false;
+
+        private DataBatcher(DataListener listener) {
+            mListener = listener;
+        }
+
+        public void add(byte[] data) {
+            boolean schedule;
+            synchronized (this) {
+                mPending.add(data);
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (schedule) {
+                execute(this);
+            }
+        }
+
+        /**
+         * Drops the events not delivered yet
+         */
+        public synchronized void clear() {
+            mPending.clear();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                byte[] data;
+                synchronized (this) {
+                    data = mPending.poll();
+                    if (data == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                mListener.onData(data);
+            }
+        }
+    }
+
+    private static class HandlerExecutor implements Executor {
+        private final Handler mHandler;
+
+        HandlerExecutor(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            mHandler.post(runnable);
+        }
+    }
+}
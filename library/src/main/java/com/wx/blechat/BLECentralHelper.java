@@ -6,10 +6,11 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.BluetoothSocket;
+import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
@@ -19,20 +20,29 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
 
 /**
@@ -59,19 +69,21 @@ public class BLECentralHelper {
     private static final UUID MY_UUID_INSECURE =
             UUID.fromString("83769a57-e930-4496-8ece-fec16420c77c");
 
-    private static final int MAX_RETRIES = 5;
-
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothGatt mConnectedGatt;
+    private BLEOperationQueue mOperationQueue;
     /* Test RFCOMMSocket connection */
     private BluetoothSocket mSocket;
     private String mRfcommSocketAddress;
+    private ExecutorService mIoExecutor;
 
-    private List<BLEDiscoverCallback> mBleDiscoveryCallback = new ArrayList<>();
-    private List<BLECentralChatEvents> mBleChatEvents = new ArrayList<>();
+    private BLEListenerList<BLEDiscoverCallback> mBleDiscoveryCallback = new BLEListenerList<>(BLEDiscoverCallback.class);
+    private BLEListenerList<BLECentralChatEvents> mBleChatEvents = new BLEListenerList<>(BLECentralChatEvents.class);
 
-    private Handler mHandler = new Handler();
+    private volatile BLECallbackDispatcher mDispatcher = BLECallbackDispatcher.mainThread();
+    private volatile BLECallbackDispatcher.DataBatcher mDataStreamBatcher = newDataStreamBatcher(mDispatcher);
+    private Handler mInternalHandler;
 
     private Context mContext;
 
@@ -99,34 +111,42 @@ public class BLECentralHelper {
         mBleDiscoveryCallback.remove(bleCallback);
     }
 
-    /**
-     * Events for the advertising phase
+    /*
+     * Events for the discovery phase. Every event has its own typed method, so firing it
+     * costs a call per listener: no boxing, no casts.
      */
-    private enum NotifyDisAction {
-        NOTIFY_DIS_ACTION_INIT_FAILURE,
-        NOTIFY_DIS_ACTION_INIT_SUCCESS,
-        NOTIFY_DIS_ACTION_SCAN_RESULT,
-        NOTIFY_DIS_ACTION_SCAN_FAILED,
+
+    private void notifyInitFailure(String message) {
+        for (BLEDiscoverCallback callback : mBleDiscoveryCallback.array()) {
+            callback.onInitFailure(message);
+        }
     }
 
-    private void notifyDisListeners(NotifyDisAction action, Object data) {
-        notifyDisListeners(action, data, null);
+    private void notifyInitSuccess() {
+        for (BLEDiscoverCallback callback : mBleDiscoveryCallback.array()) {
+            callback.onInitSuccess();
+        }
     }
 
-    private void notifyDisListeners(NotifyDisAction action, Object data, Object extra) {
-        for (BLEDiscoverCallback callback : mBleDiscoveryCallback) {
-            switch (action) {
-                case NOTIFY_DIS_ACTION_INIT_FAILURE:
-                    callback.onInitFailure((String) data);
-                    break;
-                case NOTIFY_DIS_ACTION_INIT_SUCCESS:
-                    callback.onInitSuccess();
-                    break;
-                case NOTIFY_DIS_ACTION_SCAN_RESULT:
-                    callback.onScanResult((BluetoothDevice) data, (Integer) extra);
-                    break;
-                case NOTIFY_DIS_ACTION_SCAN_FAILED:
-                    callback.onScanFailed((String) data);
+    private void notifyScanResult(BluetoothDevice device, int rssi) {
+        for (BLEDiscoverCallback callback : mBleDiscoveryCallback.array()) {
+            callback.onScanResult(device, rssi);
+        }
+    }
+
+    private void notifyScanFailed(String message) {
+        for (BLEDiscoverCallback callback : mBleDiscoveryCallback.array()) {
+            callback.onScanFailed(message);
+        }
+    }
+
+    /**
+     * Only callbacks implementing BLEScanCacheCallback are told
+     */
+    private void notifyDevicesChanged(List<BLEScanRecord> devices) {
+        for (BLEDiscoverCallback callback : mBleDiscoveryCallback.array()) {
+            if (callback instanceof BLEScanCacheCallback) {
+                ((BLEScanCacheCallback) callback).onDevicesChanged(devices);
             }
         }
     }
@@ -139,115 +159,349 @@ public class BLECentralHelper {
         mBleChatEvents.remove(bleChatEvents);
     }
 
-    /**
+    /*
      * Events for the chatting phase
      */
-    private enum NotifyChatAction {
-        NOTIFY_CHAT_ACTION_CONNECT,
-        NOTIFY_CHAT_ACTION_DISCONNECT,
-        NOTIFY_CHAT_ACTION_VERSION,
-        NOTIFY_CHAT_ACTION_DESCRIPTION,
-        NOTIFY_CHAT_ACTION_RFCOMM_CONNECT,
-        NOTIFY_CHAT_ACTION_MTU_CHANGED,
-        NOTIFY_CHAT_ACTION_MESSAGE,
-        NOTIFY_CHAT_ACTION_DATA,
-        NOTIFY_CHAT_ACTION_DATA_STREAM,
-        NOTIFY_CHAT_ACTION_STREAM_SENT,
-        NOTIFY_CHAT_ACTION_INFO,
-        NOTIFY_CHAT_ACTION_CONNECTION_ERROR,
-    }
-
-    private void notifyChatListeners(NotifyChatAction action, Object data) {
-        notifyChatListeners(action, data, null);
-    }
-
-    private void notifyChatListeners(NotifyChatAction action, Object data, Object extra) {
-        for (BLECentralChatEvents callback : mBleChatEvents) {
-            switch (action) {
-                case NOTIFY_CHAT_ACTION_CONNECT:
-                    callback.onConnect();
-                    break;
-                case NOTIFY_CHAT_ACTION_DISCONNECT:
-                    callback.onDisconnect();
-                    break;
-                case NOTIFY_CHAT_ACTION_VERSION:
-                    callback.onVersion((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_DESCRIPTION:
-                    callback.onDescription((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_RFCOMM_CONNECT:
-                    callback.onRfcommConnect();
-                    break;
-                case NOTIFY_CHAT_ACTION_MTU_CHANGED:
-                    callback.onMtuChanged((Integer) data, (Integer) extra);
-                    break;
-                case NOTIFY_CHAT_ACTION_MESSAGE:
-                    callback.onMessage((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_DATA:
-                    callback.onData((byte[]) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_DATA_STREAM:
-                    callback.onDataStream((byte[]) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_STREAM_SENT:
-                    callback.onStreamSent((Integer) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_INFO:
-                    callback.onInfo((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_CONNECTION_ERROR:
-                    callback.onConnectionError((String) data);
-                    break;
-                default:
-                    break;
+
+    private void notifyConnect() {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onConnect();
+        }
+    }
+
+    private void notifyDisconnect() {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onDisconnect();
+        }
+    }
+
+    private void notifyVersion(String version) {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onVersion(version);
+        }
+    }
+
+    private void notifyDescription(String description) {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onDescription(description);
+        }
+    }
+
+    private void notifyRfcommConnect() {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onRfcommConnect();
+        }
+    }
+
+    private void notifyMtuChanged(int status, int mtu) {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onMtuChanged(status, mtu);
+        }
+    }
+
+    private void notifyMessage(String msg) {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onMessage(msg);
+        }
+    }
+
+    private void notifyData(byte[] data) {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onData(data);
+        }
+    }
+
+    private void notifyDataStream(byte[] data) {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onDataStream(data);
+        }
+    }
+
+    private void notifyStreamSent(int status) {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onStreamSent(status);
+        }
+    }
+
+    private void notifyInfo(String info) {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onInfo(info);
+        }
+    }
+
+    private void notifyConnectionError(String error) {
+        for (BLECentralChatEvents callback : mBleChatEvents.array()) {
+            callback.onConnectionError(error);
+        }
+    }
+
+    /**
+     * Sets where the events reach the listeners. By default they are delivered in the
+     * main thread, see BLECallbackDispatcher for the alternatives.
+     */
+    public void setCallbackDispatcher(BLECallbackDispatcher dispatcher) {
+        mDataStreamBatcher = newDataStreamBatcher(dispatcher);
+        mDispatcher = dispatcher;
+    }
+
+    public BLECallbackDispatcher getCallbackDispatcher() {
+        return mDispatcher;
+    }
+
+    private BLECallbackDispatcher.DataBatcher newDataStreamBatcher(BLECallbackDispatcher dispatcher) {
+        return dispatcher.newDataBatcher(new BLECallbackDispatcher.DataListener() {
+            @Override
+            public void onData(byte[] data) {
+                notifyDataStream(data);
             }
+        });
+    }
+
+    /**
+     * Handler of the helper's own background thread, used for timeouts and internal work,
+     * never for listener callbacks
+     */
+    private synchronized Handler getInternalHandler() {
+        if (mInternalHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            mInternalHandler = new Handler(thread.getLooper());
         }
+        return mInternalHandler;
     }
 
     public void init(Context context) {
         mContext = context;
         if (context == null) {
-            notifyDisListeners(NotifyDisAction.NOTIFY_DIS_ACTION_INIT_FAILURE, "Invalid Context!");
+            notifyInitFailure("Invalid Context!");
             return;
         }
+        if (mPeerCache == null) {
+            mPeerCache = new BLEPeerCache(context.getSharedPreferences(BLEPeerCache.PREFERENCES_NAME, Context.MODE_PRIVATE));
+        }
         mBluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         mBluetoothAdapter = mBluetoothManager.getAdapter();
         if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
-            notifyDisListeners(NotifyDisAction.NOTIFY_DIS_ACTION_INIT_FAILURE, "Bluetooth not supported in this device!!");
+            notifyInitFailure("Bluetooth not supported in this device!!");
 
             return;
         }
 
         if (!context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
-            notifyDisListeners(NotifyDisAction.NOTIFY_DIS_ACTION_INIT_FAILURE, "Bluetooth LE is not supported in this devices!!");
+            notifyInitFailure("Bluetooth LE is not supported in this devices!!");
             return;
         }
 
-        notifyDisListeners(NotifyDisAction.NOTIFY_DIS_ACTION_INIT_SUCCESS, null);
+        notifyInitSuccess();
     }
 
     /**
      * This is a passive action, it will listen advertisements from other peripheral devices
      */
     public void startScan() {
+        startScan(BLEScanConfig.DEFAULT);
+    }
+
+    /**
+     * Starts scanning with the given parameters. Batched scans fall back to immediate
+     * reports when the controller doesn't support offloaded batching.
+     */
+    public void startScan(BLEScanConfig config) {
+        stopScheduler();
+        startRadio(config);
+        startScanReports();
+    }
+
+    private void startRadio(BLEScanConfig config) {
         ScanFilter scanFilter = new ScanFilter.Builder()
                 .setServiceUuid(new ParcelUuid(BLEChatProfile.SERVICE_UUID))
                 .build();
         ArrayList<ScanFilter> filters = new ArrayList<ScanFilter>();
         filters.add(scanFilter);
 
-        ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
-                .build();
-        mBluetoothAdapter.getBluetoothLeScanner().startScan(filters, settings, mScanCallback);
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(config.getScanMode());
+        if (config.isBatched()) {
+            if (mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                builder.setReportDelay(config.getReportDelay());
+            } else {
+                Log.w(TAG, "Offloaded scan batching not supported, using immediate reports");
+                config = config.buildUpon().setReportDelay(0).build();
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            setMatchSettings(builder, config);
+        }
+
+        BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (mScanConfig != null) {
+            // Restarting with new parameters
+            scanner.stopScan(mScanCallback);
+        }
+        mScanConfig = config;
+        scanner.startScan(filters, builder.build(), mScanCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setMatchSettings(ScanSettings.Builder builder, BLEScanConfig config) {
+        builder.setMatchMode(config.getMatchMode())
+                .setNumOfMatches(config.getNumOfMatches());
     }
 
     public void stopScan() {
-        mBluetoothAdapter.getBluetoothLeScanner().stopScan(mScanCallback);
+        stopScheduler();
+        stopRadio();
+        stopScanReports();
     }
 
+    private void stopRadio() {
+        if (mScanConfig == null) {
+            return;
+        }
+        BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (mScanConfig != null && mScanConfig.isBatched()) {
+            // Deliver what the controller has batched so far
+            scanner.flushPendingScanResults(mScanCallback);
+        }
+        scanner.stopScan(mScanCallback);
+        mScanConfig = null;
+    }
+
+    /**
+     * Scans in duty cycles adapted to the neighbourhood: low latency while new devices keep
+     * showing up, backing off to low power when it's stable. Scanning is paused while a
+     * stream or file transfer is in progress, so it doesn't take airtime from it.
+     * Stopped by stopScan(), or replaced by a manual startScan().
+     *
+     * @see BLEScanScheduler
+     */
+    public void startAdaptiveScan() {
+        BLEScanScheduler scheduler = getScanScheduler();
+        scheduler.setPaused(mActiveTransfers.get() > 0);
+        scheduler.start();
+        startScanReports();
+    }
+
+    public boolean isAdaptiveScanning() {
+        BLEScanScheduler scheduler = mScanScheduler;
+        return scheduler != null && scheduler.isRunning();
+    }
+
+    private synchronized BLEScanScheduler getScanScheduler() {
+        if (mScanScheduler == null) {
+            mScanScheduler = new BLEScanScheduler(getInternalHandler(), new BLEScanScheduler.Scanner() {
+                @Override
+                public void startScan(BLEScanConfig config) {
+                    startRadio(config);
+                }
+
+                @Override
+                public void stopScan() {
+                    stopRadio();
+                }
+            });
+        }
+        return mScanScheduler;
+    }
+
+    private void stopScheduler() {
+        BLEScanScheduler scheduler = mScanScheduler;
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+    }
+
+    /**
+     * A stream or file transfer started, scanning is paused until all of them are over
+     */
+    private void onTransferStarted() {
+        if (mActiveTransfers.incrementAndGet() == 1 && mScanScheduler != null) {
+            mScanScheduler.setPaused(true);
+        }
+    }
+
+    private void onTransferFinished() {
+        if (mActiveTransfers.decrementAndGet() == 0 && mScanScheduler != null) {
+            mScanScheduler.setPaused(false);
+        }
+    }
+
+    private volatile BLEScanScheduler mScanScheduler;
+    private final AtomicInteger mActiveTransfers = new AtomicInteger();
+
+    /**
+     * @return the parameters of the scan in progress, null if not scanning. Batched scans
+     * that fell back to immediate reports have a report delay of 0.
+     */
+    public BLEScanConfig getScanConfig() {
+        return mScanConfig;
+    }
+
+    private volatile BLEScanConfig mScanConfig;
+
+    /**
+     * Devices seen while scanning. Advertisements are aggregated here, listeners only get
+     * onScanResult() for new devices and, if they implement BLEScanCacheCallback, a coalesced
+     * onDevicesChanged() per report interval.
+     */
+    private final BLEScanCache mScanCache = new BLEScanCache();
+    private volatile long mScanReportInterval = DEFAULT_SCAN_REPORT_INTERVAL;
+    private volatile boolean mScanCacheDirty = false;
+
+    public static final long DEFAULT_SCAN_REPORT_INTERVAL = 1000;
+
+    /**
+     * Sets how often onDevicesChanged() can be called while scanning
+     */
+    public void setScanReportInterval(long millis) {
+        mScanReportInterval = millis;
+    }
+
+    /**
+     * @return the devices currently in the scan cache
+     */
+    public List<BLEScanRecord> getScanResults() {
+        return mScanCache.snapshot();
+    }
+
+    private void startScanReports() {
+        Handler handler = getInternalHandler();
+        handler.removeCallbacks(mScanReportRunnable);
+        handler.postDelayed(mScanReportRunnable, mScanReportInterval);
+    }
+
+    private void stopScanReports() {
+        getInternalHandler().removeCallbacks(mScanReportRunnable);
+    }
+
+    /**
+     * Runs once per report interval while scanning: evicts the devices gone and, if anything
+     * changed, reports the whole table
+     */
+    private final Runnable mScanReportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long expiry = mScanCache.getExpiry();
+            BLEScanScheduler scheduler = mScanScheduler;
+            if (scheduler != null && scheduler.isRunning()) {
+                // Devices can't be seen while the radio is off between windows
+                expiry = Math.max(expiry, 2 * scheduler.getInterval());
+            }
+            boolean evicted = mScanCache.evictExpired(SystemClock.elapsedRealtime(), expiry);
+            if (evicted || mScanCacheDirty) {
+                mScanCacheDirty = false;
+                final List<BLEScanRecord> devices = mScanCache.snapshot();
+                mDispatcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        notifyDevicesChanged(devices);
+                    }
+                });
+            }
+            getInternalHandler().postDelayed(this, mScanReportInterval);
+        }
+    };
+
     private ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
@@ -266,12 +520,24 @@ public class BLECentralHelper {
         @Override
         public void onScanFailed(int errorCode) {
             Log.w(TAG, "LE Scan Failed: " + errorCode);
+            notifyScanFailed("LE Scan Failed: " + errorCode);
         }
 
         private void processResult(ScanResult result) {
             BluetoothDevice device = result.getDevice();
-            Log.i(TAG, "New LE Device: " + device.getName() + " @ " + result.getRssi());
-            notifyDisListeners(NotifyDisAction.NOTIFY_DIS_ACTION_SCAN_RESULT, device, result.getRssi());
+            int change = mScanCache.update(device, device.getAddress(), result.getRssi(), SystemClock.elapsedRealtime());
+            if (change == BLEScanCache.UNCHANGED) {
+                return;
+            }
+            mScanCacheDirty = true;
+            if (change == BLEScanCache.NEW_DEVICE) {
+                Log.i(TAG, "New LE Device: " + device.getName() + " @ " + result.getRssi());
+                notifyScanResult(device, result.getRssi());
+                BLEScanScheduler scheduler = mScanScheduler;
+                if (scheduler != null) {
+                    scheduler.onNewDevice();
+                }
+            }
         }
     };
 
@@ -283,9 +549,58 @@ public class BLECentralHelper {
      * @param events
      */
     public void connect(Context context, BluetoothDevice device) {
+        BLEMetrics metrics = new BLEMetrics();
+        if (device.getAddress().equals(mLastAddress)) {
+            metrics.add(BLEMetrics.RECONNECTS, mMetrics.get(BLEMetrics.RECONNECTS) + 1);
+        }
+        mLastAddress = device.getAddress();
+        mMetrics = metrics;
+        mConnectStart = SystemClock.elapsedRealtime();
         mConnectedGatt = device.connectGatt(context, false, mGattCallback);
     }
 
+    /**
+     * Connects straight to a peer we have been connected to before, without scanning.
+     * Peers using a random private address may not be reachable at their old address,
+     * scan for them if this fails.
+     *
+     * @return false if the peer is unknown, or we know nothing recent about it: scan for it
+     */
+    public boolean connect(Context context, String address) {
+        BLEPeerCache cache = mPeerCache;
+        if (cache == null || mBluetoothAdapter == null || !BluetoothAdapter.checkBluetoothAddress(address)
+                || cache.get(address, System.currentTimeMillis()) == null) {
+            return false;
+        }
+        connect(context, mBluetoothAdapter.getRemoteDevice(address));
+        return true;
+    }
+
+    /**
+     * @return the peers we have been connected to, with what they told us the last time.
+     * Null until init().
+     */
+    public BLEPeerCache getPeerCache() {
+        return mPeerCache;
+    }
+
+    /**
+     * @return the transfer metrics of the current (or last) connection
+     */
+    public BLEMetrics.Snapshot getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    private volatile BLEMetrics mMetrics = new BLEMetrics();
+    // Characteristics of the current connection, null until its services are discovered
+    private volatile BLEChatCharacteristics mCharacteristics;
+    private volatile long mConnectStart = 0;
+    private String mLastAddress;
+    private volatile BLEPeerCache mPeerCache;
+    // What the peer of the current connection told us, read or from the cache
+    private volatile String mPeerVersion;
+    private volatile String mPeerDescription;
+
     public void disconnect() {
         if (mConnectedGatt != null) {
             mConnectedGatt.disconnect();
@@ -318,14 +633,14 @@ public class BLECentralHelper {
                     try {
                         mSocket = classicBtDevice.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
                         mSocket.connect();
-                        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_RFCOMM_CONNECT, null);
+                        notifyRfcommConnect();
                     } catch (IOException e) {
                         try {
                             mSocket.close();
                         } catch (IOException e2) {
-                            notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, e2.toString());
+                            notifyConnectionError(e2.toString());
                         }
-                        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, e.toString());
+                        notifyConnectionError(e.toString());
                     }
                 }
                 // When discovery is finished, change the Activity title
@@ -345,22 +660,37 @@ public class BLECentralHelper {
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    mMtu = BLEChatProfile.DEFAULT_MTU;
+                    mCharacteristics = null;
+                    mPeerVersion = null;
+                    mPeerDescription = null;
+                    mOperationQueue = new BLEOperationQueue(gatt, getInternalHandler(), mOperationListener);
+                    mOperationQueue.setMetrics(mMetrics);
+                    mMetrics.setMtu(BLEChatProfile.DEFAULT_MTU);
                     gatt.discoverServices();
                 } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    mHandler.post(new Runnable() {
+                    mMtu = BLEChatProfile.DEFAULT_MTU;
+                    closeOperationQueue();
+                    mCharacteristics = null;
+                    resetStream();
+                    mFrameDecoder.reset();
+                    mDispatcher.execute(new Runnable() {
                         @Override
                         public void run() {
-                            notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_DISCONNECT, null);
+                            notifyDisconnect();
                         }
                     });
 
                 }
             } else {
+                closeOperationQueue();
+                mCharacteristics = null;
+                resetStream();
                 final int finalStatus = status;
-                mHandler.post(new Runnable() {
+                mDispatcher.execute(new Runnable() {
                     @Override
                     public void run() {
-                        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Connection state error! : Error = " + finalStatus);
+                        notifyConnectionError("Connection state error! : Error = " + finalStatus);
                     }
                 });
 
@@ -372,20 +702,53 @@ public class BLECentralHelper {
             super.onServicesDiscovered(gatt, status);
             Log.d(TAG, "onServicesDiscovered:");
 
-            for (BluetoothGattService service : gatt.getServices()) {
-                Log.d(TAG, "Service: " + service.getUuid());
-                if (BLEChatProfile.SERVICE_UUID.equals(service.getUuid())) {
-                    gatt.readCharacteristic(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_VERSION_UUID));
-                    gatt.readCharacteristic(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_DESC_UUID));
-                    gatt.setCharacteristicNotification(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID), true);
-                    gatt.setCharacteristicNotification(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID), true);
-                    gatt.setCharacteristicNotification(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID), true);
+            // Resolved once, the callbacks and the send paths use them from now on
+            BLEChatCharacteristics characteristics =
+                    BLEChatCharacteristics.resolve(gatt.getService(BLEChatProfile.SERVICE_UUID));
+            BLEOperationQueue queue = mOperationQueue;
+            BluetoothDevice device = gatt.getDevice();
+            BLEPeerCache cache = mPeerCache;
+            final BLEPeerCache.Peer peer = (characteristics != null && cache != null)
+                    ? cache.get(device.getAddress(), System.currentTimeMillis()) : null;
+            if (characteristics == null) {
+                Log.w(TAG, "Chat service not found");
+                if (cache != null) {
+                    cache.remove(device.getAddress());
+                }
+            } else if (queue != null) {
+                mCharacteristics = characteristics;
+                // One GATT operation at a time, the queue will issue them in order
+                int preferredMtu = mPreferredMtu;
+                if (preferredMtu > BLEChatProfile.DEFAULT_MTU && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    // First of all, so everything sent afterwards uses the bigger MTU
+                    queue.enqueue(BLEOperationQueue.Operation.requestMtu(preferredMtu));
+                }
+                // The version is negotiated on every connection, the peer may have been
+                // upgraded since. Only its description is taken from the cache
+                queue.enqueue(BLEOperationQueue.Operation.read(characteristics.mVersion));
+                if (peer == null) {
+                    queue.enqueue(BLEOperationQueue.Operation.read(characteristics.mDescription));
                 }
+                queue.enqueue(BLEOperationQueue.Operation.notification(characteristics.mMessage, true));
+                queue.enqueue(BLEOperationQueue.Operation.notification(characteristics.mRfcommTransfer, true));
+                queue.enqueue(BLEOperationQueue.Operation.notification(characteristics.mBleTransfer, true));
+                if (peer != null) {
+                    Log.d(TAG, "Known peer " + peer);
+                    mPeerDescription = peer.getDescription();
+                }
+            }
+            long connectStart = mConnectStart;
+            if (connectStart > 0) {
+                mConnectStart = 0;
+                mMetrics.recordConnectionSetup(SystemClock.elapsedRealtime() - connectStart);
             }
-            mHandler.post(new Runnable() {
+            mDispatcher.execute(new Runnable() {
                 @Override
                 public void run() {
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECT, null);
+                    notifyConnect();
+                    if (peer != null) {
+                        notifyDescription(peer.getDescription());
+                    }
                 }
             });
         }
@@ -395,58 +758,79 @@ public class BLECentralHelper {
                                          final BluetoothGattCharacteristic characteristic,
                                          int status) {
             super.onCharacteristicRead(gatt, characteristic, status);
-            if (BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID.equals(characteristic.getUuid())) {
+            int kind = kindOf(characteristic);
+            if (kind == BLEChatCharacteristics.KIND_MESSAGE) {
                 final String msg = characteristic.getStringValue(0);
-                mHandler.post(new Runnable() {
+                mDispatcher.execute(new Runnable() {
                     @Override
                     public void run() {
-                        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_MESSAGE, msg);
+                        notifyMessage(msg);
                     }
                 });
 
                 //Register for further updates as notifications
                 gatt.setCharacteristicNotification(characteristic, true);
             }
-            if (BLEChatProfile.CHARACTERISTIC_VERSION_UUID.equals(characteristic.getUuid())) {
+            if (kind == BLEChatCharacteristics.KIND_VERSION && status == BluetoothGatt.GATT_SUCCESS) {
                 final String version = characteristic.getStringValue(0);
-                mHandler.post(new Runnable() {
+                onPeerVersion(gatt.getDevice(), version);
+                mDispatcher.execute(new Runnable() {
                     @Override
                     public void run() {
-                        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_VERSION, version);
+                        notifyVersion(version);
                     }
                 });
 
                 //Register for further updates as notifications
                 gatt.setCharacteristicNotification(characteristic, true);
             }
-            if (BLEChatProfile.CHARACTERISTIC_DESC_UUID.equals(characteristic.getUuid())) {
+            if (kind == BLEChatCharacteristics.KIND_DESCRIPTION && status == BluetoothGatt.GATT_SUCCESS) {
                 final String description = characteristic.getStringValue(0);
-                mHandler.post(new Runnable() {
+                mPeerDescription = description;
+                rememberPeer(gatt.getDevice());
+                mDispatcher.execute(new Runnable() {
                     @Override
                     public void run() {
-                        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_DESCRIPTION, description);
+                        notifyDescription(description);
                     }
                 });
 
                 //Register for further updates as notifications
                 gatt.setCharacteristicNotification(characteristic, true);
             }
+            BLEOperationQueue queue = mOperationQueue;
+            if (queue != null) {
+                queue.onCharacteristicRead(characteristic, status);
+            }
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
                                           int status) {
-            if (BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID.equals(characteristic.getUuid())) {
+            if (kindOf(characteristic) == BLEChatCharacteristics.KIND_BLE_TRANSFER) {
                 final int chatStatus = (status == BluetoothGatt.GATT_SUCCESS ? BLEChatEvents.SENT_SUCCEED : BLEChatEvents.SENT_FAILED);
-                mHandler.post(new Runnable() {
+                mDispatcher.execute(new Runnable() {
                     @Override
                     public void run() {
-                        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_STREAM_SENT, chatStatus);
+                        notifyStreamSent(chatStatus);
                     }
                 });
             }
+            BLEOperationQueue queue = mOperationQueue;
+            if (queue != null) {
+                queue.onCharacteristicWrite(characteristic, status);
+            }
+        }
 
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt,
+                                      BluetoothGattDescriptor descriptor,
+                                      int status) {
+            BLEOperationQueue queue = mOperationQueue;
+            if (queue != null) {
+                queue.onDescriptorWrite(descriptor, status);
+            }
         }
 
         @Override
@@ -454,13 +838,24 @@ public class BLECentralHelper {
                                  int mtu,
                                  int status) {
             final int chatStatus = (status == BluetoothGatt.GATT_SUCCESS ? BLECentralChatEvents.MTU_CHANGE_SUCCEED : BLECentralChatEvents.MTU_CHANGE_FAILED);
-            mMtu = mtu;
-            mHandler.post(new Runnable() {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                // From now on messages are fragmented to fit it
+                mMtu = mtu;
+                mMetrics.setMtu(mtu);
+                rememberPeer(gatt.getDevice());
+            }
+            Log.i(TAG, "MTU " + mMtu + ", payload size " + getPayloadSize());
+            final int effectiveMtu = mMtu;
+            mDispatcher.execute(new Runnable() {
                 @Override
                 public void run() {
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_MTU_CHANGED, chatStatus, mMtu);
+                    notifyMtuChanged(chatStatus, effectiveMtu);
                 }
             });
+            BLEOperationQueue queue = mOperationQueue;
+            if (queue != null) {
+                queue.onMtuChanged(status);
+            }
         }
 
 
@@ -468,44 +863,201 @@ public class BLECentralHelper {
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             final BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicChanged(gatt, characteristic);
-            Log.i(TAG, "Notification of message characteristic changed on server.");
-            if (BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID.equals(characteristic.getUuid())) {
-                mHandler.post(new Runnable() {
+            int kind = kindOf(characteristic);
+            if (kind == BLEChatCharacteristics.KIND_BLE_TRANSFER) {
+                byte[] value = characteristic.getValue();
+                if (BLEFrameCodec.isCredit(value)) {
+                    mFlowSender.onCredits(BLEFrameCodec.getCredits(value));
+                    pumpStream();
+                } else {
+                    // Fragments must be decoded in order, so do it right here in the binder thread
+                    mMetrics.add(BLEMetrics.BYTES_RECEIVED, value.length);
+                    mFrameDecoder.decode(value);
+                }
+            } else if (kind == BLEChatCharacteristics.KIND_MESSAGE) {
+                Log.i(TAG, "Notification of message characteristic changed on server.");
+                // Read the value now, the characteristic can change before the callback runs
+                byte[] value = characteristic.getValue();
+                if (mDecompressInbound) {
+                    try {
+                        value = mCompression.decode(value);
+                    } catch (DataFormatException e) {
+                        reportError("Malformed message: " + e.getMessage());
+                        return;
+                    }
+                }
+                mMetrics.increment(BLEMetrics.MESSAGES_RECEIVED);
+                mMetrics.add(BLEMetrics.BYTES_RECEIVED, value.length);
+                final String msg = new String(value, StandardCharsets.UTF_8);
+                mDispatcher.execute(new Runnable() {
                     @Override
                     public void run() {
-                        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_MESSAGE, characteristic.getStringValue(0));
+                        notifyMessage(msg);
                     }
                 });
-            } else if (BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID.equals(characteristic.getUuid())) {
-                mHandler.post(new Runnable() {
+            } else if (kind == BLEChatCharacteristics.KIND_RFCOMM_TRANSFER) {
+                final String address = characteristic.getStringValue(0);
+                getInternalHandler().post(new Runnable() {
                     @Override
                     public void run() {
-                        mRfcommSocketAddress = characteristic.getStringValue(0);
+                        mRfcommSocketAddress = address;
                         connect2RfcommSocket();
                         //mBleChatEvents.onTransfer(characteristic.getStringValue(0));
                     }
                 });
-            } else if (BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID.equals(characteristic.getUuid())) {
-                mHandler.post(new Runnable() {
+            }
+        }
+    }; //End BluetoothGattCallback
+
+    /**
+     * Adapts to the version read from the peer
+     */
+    private void onPeerVersion(BluetoothDevice device, String version) {
+        mPeerVersion = version;
+        rememberPeer(device);
+        // Older peers don't grant flow control credits
+        mFlowSender.setUnlimited(BLEChatProfile.parseVersion(version) < BLEChatProfile.FLOW_CONTROL_VERSION);
+        pumpStream();
+        BLEChatCharacteristics characteristics = mCharacteristics;
+        if (characteristics != null && BLEChatProfile.hasFeature(version, BLEChatProfile.FEATURE_DEFLATE)
+                && BLEChatProfile.hasFeature(BLEChatProfile.getVersion(), BLEChatProfile.FEATURE_DEFLATE)) {
+            // Tell the Peripheral we compress too. Messages are queued under the same lock,
+            // so the raw ones go before this write and the compressed ones after it.
+            // Streams are flagged message by message, see BLEFrameCodec.FLAG_COMPRESSED
+            synchronized (this) {
+                mCompressOutbound = true;
+                enqueue(BLEOperationQueue.Operation.write(characteristics.mVersion,
+                        BLEChatProfile.getVersion().getBytes(StandardCharsets.UTF_8),
+                        BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
+            }
+        }
+    }
+
+    /**
+     * Saves what the peer told us, once we know both its version and description
+     */
+    private void rememberPeer(BluetoothDevice device) {
+        BLEPeerCache cache = mPeerCache;
+        String version = mPeerVersion;
+        String description = mPeerDescription;
+        if (cache != null && version != null && description != null) {
+            cache.put(new BLEPeerCache.Peer(device.getAddress(), version, description, mMtu,
+                    System.currentTimeMillis()));
+        }
+    }
+
+    private BLEOperationQueue.Listener mOperationListener = new BLEOperationQueue.Listener() {
+        @Override
+        public void onOperationComplete(BLEOperationQueue.Operation operation, int status) {
+            boolean stream = isStreamOperation(operation);
+            if (stream) {
+                onStreamWriteComplete(operation, status == BluetoothGatt.GATT_SUCCESS);
+                mFlowSender.onWriteComplete();
+                pumpStream();
+            }
+            if (operation.getType() == BLEOperationQueue.Type.WRITE) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    mMetrics.increment(BLEMetrics.WRITE_FAILURES);
+                } else if (stream) {
+                    mMetrics.add(BLEMetrics.BYTES_SENT, operation.getValue().length);
+                } else if (kindOf(operation.getCharacteristic()) == BLEChatCharacteristics.KIND_MESSAGE) {
+                    mMetrics.increment(BLEMetrics.MESSAGES_SENT);
+                    mMetrics.add(BLEMetrics.BYTES_SENT, operation.getValue().length);
+                } else if (kindOf(operation.getCharacteristic()) == BLEChatCharacteristics.KIND_VERSION
+                        && mCompressOutbound) {
+                    // The Peripheral has our version, it compresses from now on
+                    mDecompressInbound = true;
+                }
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                final String error = "GATT operation failed: " + operation + " : Error = " + status;
+                Log.w(TAG, error);
+                mDispatcher.execute(new Runnable() {
                     @Override
                     public void run() {
-                        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_INFO, "BLE_TRANS Charac changed!!");
+                        notifyConnectionError(error);
                     }
                 });
             }
         }
-    }; //End BluetoothGattCallback
 
-    public void send(byte[] data) {
-        final BluetoothGattCharacteristic characteristic = mConnectedGatt
-                .getService(BLEChatProfile.SERVICE_UUID)
-                .getCharacteristic(BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID);
+        @Override
+        public void onOperationTimeout(BLEOperationQueue.Operation operation) {
+            if (operation.getType() == BLEOperationQueue.Type.WRITE) {
+                mMetrics.increment(BLEMetrics.WRITE_FAILURES);
+            }
+            if (isStreamOperation(operation)) {
+                onStreamWriteComplete(operation, false);
+                mFlowSender.onWriteComplete();
+                pumpStream();
+            }
+            final String error = "GATT operation timeout: " + operation;
+            mDispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    notifyConnectionError(error);
+                }
+            });
+        }
+    };
+
+    /**
+     * Reports a connection error to the listeners from any thread
+     */
+    private void reportError(final String error) {
+        Log.w(TAG, error);
+        mDispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                notifyConnectionError(error);
+            }
+        });
+    }
+
+    /**
+     * @return which chat characteristic it is, by identity, see {@link BLEChatCharacteristics}
+     */
+    private int kindOf(BluetoothGattCharacteristic characteristic) {
+        BLEChatCharacteristics characteristics = mCharacteristics;
+        return characteristics != null ? characteristics.kindOf(characteristic) : BLEChatCharacteristics.KIND_OTHER;
+    }
 
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-        characteristic.setValue(data);
-        if (!mConnectedGatt.writeCharacteristic(characteristic)) {
-            notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Couldn't send data!!");
+    /**
+     * Drops the pending GATT operations of the current connection
+     */
+    private void closeOperationQueue() {
+        BLEOperationQueue queue = mOperationQueue;
+        if (queue != null) {
+            queue.close();
         }
+        mOperationQueue = null;
+    }
+
+    /**
+     * Enqueues a GATT operation on the current connection
+     *
+     * @return false if there is no connection
+     */
+    private boolean enqueue(BLEOperationQueue.Operation operation) {
+        BLEOperationQueue queue = mOperationQueue;
+        if (queue == null) {
+            reportError("Not connected!!");
+            return false;
+        }
+        queue.enqueue(operation);
+        return true;
+    }
+
+    public synchronized void send(byte[] data) {
+        BLEChatCharacteristics characteristics = mCharacteristics;
+        if (characteristics == null) {
+            reportError("Not connected!!");
+            return;
+        }
+        if (mCompressOutbound) {
+            data = mCompression.encode(data);
+        }
+        enqueue(BLEOperationQueue.Operation.write(characteristics.mMessage, data, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
     }
 
     public void send(String msg) {
@@ -513,42 +1065,135 @@ public class BLECentralHelper {
     }
 
     /**
+     * Sends a file through the RFCOMM socket. Completion and errors are notified via
+     * onStreamSent() and onConnectionError()
      *
+     * @return the transfer, which can be used to cancel it or check its progress
      */
-    public void sendFile(final Uri uri) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    InputStream is = mContext.getContentResolver().openInputStream(uri);
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    byte[] b = new byte[1024];
-                    int bytesRead = 0;
-                    while ((bytesRead = is.read(b)) != -1) {
-                        bos.write(b, 0, bytesRead);
-                    }
-                    send2Rfcomm(bos.toByteArray());
-                } catch (FileNotFoundException ex) {
+    public BLEFileTransfer sendFile(Uri uri) {
+        return sendFile(uri, mFileTransferListener);
+    }
+
+    /**
+     * Sends a file through the RFCOMM socket.
+     * The file is streamed in chunks from a background thread, so it never blocks the caller
+     * nor loads the whole file in memory. Transfers are sent one after another.
+     *
+     * @param listener Receives progress and result, from the transfer thread
+     * @return the transfer, which can be used to cancel it or check its progress
+     */
+    public BLEFileTransfer sendFile(final Uri uri, BLEFileTransfer.Listener listener) {
+        OutputStream stream;
+        try {
+            if (mSocket == null) {
+                throw new IOException("RFCOMM Socket not connected");
+            }
+            stream = mSocket.getOutputStream();
+        } catch (IOException e) {
+            reportError("Error sending file to RFCOMM Socket: " + e.getMessage());
+            return null;
+        }
 
-                } catch (IOException ex) {
+        BLEFileTransfer transfer = new BLEFileTransfer(new BLEFileTransfer.Source() {
+            private long mLength = -1;
 
+            @Override
+            public InputStream open() throws IOException {
+                AssetFileDescriptor descriptor = mContext.getContentResolver().openAssetFileDescriptor(uri, "r");
+                if (descriptor == null) {
+                    throw new FileNotFoundException(uri.toString());
                 }
+                mLength = descriptor.getLength();
+                return descriptor.createInputStream();
             }
-        });
+
+            @Override
+            public long getLength() {
+                return mLength;
+            }
+        }, stream, listener);
+        final BLEFileTransfer task = transfer;
+        onTransferStarted();
+        try {
+            getIoExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        mMetrics.add(BLEMetrics.BYTES_SENT, task.getBytesSent());
+                        onTransferFinished();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            onTransferFinished();
+            throw e;
+        }
+        return transfer;
     }
 
+    private synchronized ExecutorService getIoExecutor() {
+        if (mIoExecutor == null) {
+            mIoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "BLEFileTransfer");
+                }
+            });
+        }
+        return mIoExecutor;
+    }
+
+    private BLEFileTransfer.Listener mFileTransferListener = new BLEFileTransfer.Listener() {
+        @Override
+        public void onProgress(BLEFileTransfer transfer, long sent, long total, long bytesPerSecond) {
+            Log.d(TAG, "File transfer: " + sent + "/" + total + " bytes, " + bytesPerSecond + " B/s");
+        }
+
+        @Override
+        public void onComplete(BLEFileTransfer transfer, long sent, long elapsedMillis) {
+            mDispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    notifyStreamSent(BLEChatEvents.SENT_SUCCEED);
+                }
+            });
+        }
+
+        @Override
+        public void onError(BLEFileTransfer transfer, final IOException error) {
+            mDispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    notifyConnectionError("Error sending file to RFCOMM Socket: " + error.getMessage());
+                }
+            });
+        }
+
+        @Override
+        public void onCancelled(BLEFileTransfer transfer, long sent) {
+            Log.d(TAG, "File transfer cancelled after " + sent + " bytes");
+        }
+    };
+
     /**
      * @param data
      */
-    private synchronized void send2Rfcomm(byte[] data) {
+    private void send2Rfcomm(byte[] data) {
         try {
             OutputStream stream = mSocket.getOutputStream();
-            stream.write(data);
+            // File transfers write to the same stream from the I/O thread
+            synchronized (stream) {
+                stream.write(data);
+            }
+            mMetrics.increment(BLEMetrics.MESSAGES_SENT);
+            mMetrics.add(BLEMetrics.BYTES_SENT, data.length);
         } catch (IOException e) {
-            mHandler.post(new Runnable() {
+            mDispatcher.execute(new Runnable() {
                 @Override
                 public void run() {
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Error sending message to RFCOMM Socket");
+                    notifyConnectionError("Error sending message to RFCOMM Socket");
                 }
             });
 
@@ -562,32 +1207,184 @@ public class BLECentralHelper {
     public synchronized void sendData() {
 
         //byte[] data = getAlphabetDataBlock(mMtu);
-        byte[] data = new byte[mMtu];
+        byte[] data = new byte[getPayloadSize() - BLEFrameCodec.FIRST_HEADER_SIZE];
+        sendData(data);
+    }
 
-        final BluetoothGattCharacteristic characteristic = mConnectedGatt
-                .getService(BLEChatProfile.SERVICE_UUID)
-                .getCharacteristic(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID);
+    /**
+     * Sends a message of any size through the BLE transfer characteristic.
+     * The message is split in MTU sized fragments that the Peripheral will reassemble
+     * before notifying it via onDataStream().
+     * Fragments are streamed as fast as the flow control allows: at most STREAM_WINDOW of
+     * them in flight, and never more than the credits granted by the Peripheral.
+     *
+     * @param data
+     */
+    public synchronized void sendData(byte[] data) {
+        sendData(data, null);
+    }
 
-        characteristic.setValue(data);
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        int iRetries = 0;
-        while (!mConnectedGatt.writeCharacteristic(characteristic)) {
-            try {
-                if (iRetries > MAX_RETRIES) {
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Couldn't send more data!!");
-                    return;
+    /**
+     * Same as {@link #sendData(byte[])}
+     *
+     * @param completion Called through the callback dispatcher once the last fragment of
+     *                   the message is written, or the message is dropped. May be null.
+     */
+    public synchronized void sendData(byte[] data, BLETransport.Completion completion) {
+        if (mOperationQueue == null) {
+            reportError("Not connected!!");
+            dispatchCompletion(completion, false);
+            return;
+        }
+        boolean compressed = mCompressOutbound;
+        mPendingStreams.add(new StreamMessage(compressed ? mCompression.encode(data) : data, compressed, completion));
+        if (!mStreaming) {
+            mStreaming = true;
+            onTransferStarted();
+        }
+        pumpStream();
+    }
+
+    /**
+     * Sends as many fragments of the pending messages as the flow control allows.
+     * Called whenever a fragment write completes or new credits arrive.
+     */
+    private synchronized void pumpStream() {
+        BLEOperationQueue queue = mOperationQueue;
+        BLEChatCharacteristics characteristics = mCharacteristics;
+        if (queue == null || characteristics == null) {
+            // Pumped again once the services are discovered
+            return;
+        }
+        while (mFlowSender.canSend()) {
+            if (!mFrameEncoder.hasNext()) {
+                StreamMessage next = mPendingStreams.poll();
+                if (next == null) {
+                    break;
                 }
-                iRetries++;
-                Log.d(TAG, "Error sending data. Retrying... " + iRetries);
-                // We are in StreamThread thread.... so we can sleep
-                Thread.sleep(BLEChatProfile.SEND_INTERVAL);
-            } catch (InterruptedException ex) {
-                notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Interrupted while sleeping!!");
-                return;
+                mFrameEncoder.setFragmentSize(getPayloadSize());
+                mFrameEncoder.begin(next.mData, next.mCompressed);
+                mStreamCompletion = next.mCompletion;
+                // Fragment bytes are counted as their writes complete
+                mMetrics.increment(BLEMetrics.MESSAGES_SENT);
+            }
+            mFlowSender.onSent();
+            BLEOperationQueue.Operation operation = BLEOperationQueue.Operation.write(characteristics.mBleTransfer,
+                    mFrameEncoder.next(), BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            if (!mFrameEncoder.hasNext()) {
+                // Fragments complete in order, the message is sent with its last one
+                mSentCompletions.add(new SentCompletion(operation, mStreamCompletion));
+                mStreamCompletion = null;
+            }
+            queue.enqueue(operation);
+        }
+        if (mStreaming && mPendingStreams.isEmpty() && !mFrameEncoder.hasNext()
+                && mFlowSender.getInFlight() == 0) {
+            mStreaming = false;
+            onTransferFinished();
+        }
+    }
+
+    /**
+     * Completes the message whose last fragment is the given operation, if any
+     */
+    private synchronized void onStreamWriteComplete(BLEOperationQueue.Operation operation, boolean success) {
+        mStreamWriteFailed |= !success;
+        SentCompletion sent = mSentCompletions.peek();
+        if (sent != null && sent.mOperation == operation) {
+            mSentCompletions.poll();
+            dispatchCompletion(sent.mCompletion, !mStreamWriteFailed);
+            mStreamWriteFailed = false;
+        }
+    }
+
+    private void dispatchCompletion(final BLETransport.Completion completion, final boolean success) {
+        if (completion == null) {
+            return;
+        }
+        mDispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                completion.onComplete(success);
             }
+        });
+    }
+
+    private boolean isStreamOperation(BLEOperationQueue.Operation operation) {
+        return operation.getType() == BLEOperationQueue.Type.WRITE
+                && kindOf(operation.getCharacteristic()) == BLEChatCharacteristics.KIND_BLE_TRANSFER;
+    }
+
+    /**
+     * Drops the pending stream messages, call it when the connection is lost
+     */
+    private synchronized void resetStream() {
+        for (SentCompletion sent : mSentCompletions) {
+            dispatchCompletion(sent.mCompletion, false);
+        }
+        mSentCompletions.clear();
+        dispatchCompletion(mStreamCompletion, false);
+        mStreamCompletion = null;
+        for (StreamMessage message : mPendingStreams) {
+            dispatchCompletion(message.mCompletion, false);
+        }
+        mPendingStreams.clear();
+        mStreamWriteFailed = false;
+        mFrameEncoder.cancel();
+        mFlowSender.reset();
+        mCompressOutbound = false;
+        mDecompressInbound = false;
+        if (mStreaming) {
+            mStreaming = false;
+            onTransferFinished();
         }
     }
 
+    private final ArrayDeque<StreamMessage> mPendingStreams = new ArrayDeque<>();
+    // Completion of the message being fragmented, until its last fragment is queued
+    private BLETransport.Completion mStreamCompletion;
+    // Last fragment of every message in flight, with its completion if any
+    private final ArrayDeque<SentCompletion> mSentCompletions = new ArrayDeque<>();
+    // A fragment of the oldest message in flight failed
+    private boolean mStreamWriteFailed = false;
+    private boolean mStreaming = false;
+    /**
+     * Messages and streams are compressed once the Peripheral has announced it supports it
+     */
+    private volatile boolean mCompressOutbound = false;
+    /**
+     * The Peripheral compresses its messages once it has our version. Whatever it notified
+     * before the response to that write is raw. Streams tell it by themselves.
+     */
+    private volatile boolean mDecompressInbound = false;
+    private final BLECompression mCompression = new BLECompression();
+    private BLEFlowControl.Sender mFlowSender =
+            new BLEFlowControl.Sender(BLEChatProfile.STREAM_WINDOW, BLEChatProfile.STREAM_INITIAL_CREDITS);
+
+    private BLEFrameCodec.Encoder mFrameEncoder =
+            new BLEFrameCodec.Encoder(BLEChatProfile.DEFAULT_MTU - BLEChatProfile.ATT_HEADER_SIZE);
+
+    private BLEFrameCodec.Decoder mFrameDecoder = new BLEFrameCodec.Decoder(new BLEFrameCodec.Decoder.Listener() {
+        @Override
+        public void onMessage(byte[] buffer, int offset, int length) {
+            mMetrics.increment(BLEMetrics.MESSAGES_RECEIVED);
+            if (!mFrameDecoder.isCompressed()) {
+                mDataStreamBatcher.add(BLEFrameCodec.copyOf(buffer, offset, length));
+                return;
+            }
+            try {
+                mDataStreamBatcher.add(mCompression.decode(buffer, offset, length));
+            } catch (DataFormatException e) {
+                reportError("Malformed BLE transfer: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            Log.w(TAG, "BLE transfer: " + error);
+        }
+    });
+
 
     /**
      * Gets a block of numElems size of the alphabet. Subsequent calls to this method
@@ -614,9 +1411,19 @@ public class BLECentralHelper {
 
 
     /**
-     * Default BLE MTU is 20
+     * MTU of the current connection. Default BLE MTU is 23 (20 bytes of payload)
+     * until the one requested after service discovery is negotiated.
+     */
+    private volatile int mMtu = BLEChatProfile.DEFAULT_MTU;
+    private volatile int mPreferredMtu = BLEChatProfile.MAX_MTU;
+
+    /**
+     * Sets the MTU requested right after service discovery, BLEChatProfile.MAX_MTU by default.
+     * The result is notified via onMtuChanged(). Use BLEChatProfile.DEFAULT_MTU to disable it.
      */
-    private int mMtu = 20;
+    public void setPreferredMtu(int mtu) {
+        mPreferredMtu = mtu;
+    }
 
     /**
      * Changes MTU.
@@ -625,17 +1432,9 @@ public class BLECentralHelper {
      * @param size
      */
     public void changeMtu(int size) {
-        if (!mConnectedGatt.requestMtu(size)) {
-            Log.d(TAG, "Couldn't set MTU!!");
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Couldn't set MTU!!");
-                }
-            });
-            return;
+        if (enqueue(BLEOperationQueue.Operation.requestMtu(size))) {
+            Log.d(TAG, "MTU change to " + size + " requested");
         }
-        Log.d(TAG, "MTU set to " + size);
     }
 
 
@@ -655,5 +1454,33 @@ public class BLECentralHelper {
         return mMtu;
     }
 
+    /**
+     * Gets the max size of a single characteristic write with the current MTU
+     */
+    public int getPayloadSize() {
+        return mMtu - BLEChatProfile.ATT_HEADER_SIZE;
+    }
+
+    private static class StreamMessage {
+        final byte[] mData;
+        // mData is a BLECompression payload
+        final boolean mCompressed;
+        final BLETransport.Completion mCompletion;
 
+        StreamMessage(byte[] data, boolean compressed, BLETransport.Completion completion) {
+            mData = data;
+            mCompressed = compressed;
+            mCompletion = completion;
+        }
+    }
+
+    private static class SentCompletion {
+        final BLEOperationQueue.Operation mOperation;
+        final BLETransport.Completion mCompletion;
+
+        SentCompletion(BLEOperationQueue.Operation operation, BLETransport.Completion completion) {
+            mOperation = operation;
+            mCompletion = completion;
+        }
+    }
 }
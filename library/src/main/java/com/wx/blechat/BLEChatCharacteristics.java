@@ -0,0 +1,72 @@
+package com.wx.blechat;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+/**
+ * The characteristics of the chat service, looked up once per connection.
+ * <p>
+ * The Bluetooth stack hands the same characteristic instances to every callback, so
+ * {@link #kindOf} tells them apart by identity: no service lookup nor UUID comparison on
+ * the path of every fragment.
+ */
+class BLEChatCharacteristics {
+
+    static final int KIND_OTHER = 0;
+    static final int KIND_VERSION = 1;
+    static final int KIND_DESCRIPTION = 2;
+    static final int KIND_MESSAGE = 3;
+    static final int KIND_RFCOMM_TRANSFER = 4;
+    static final int KIND_BLE_TRANSFER = 5;
+
+    final BluetoothGattService mService;
+    final BluetoothGattCharacteristic mVersion;
+    final BluetoothGattCharacteristic mDescription;
+    final BluetoothGattCharacteristic mMessage;
+    final BluetoothGattCharacteristic mRfcommTransfer;
+    final BluetoothGattCharacteristic mBleTransfer;
+
+    private BLEChatCharacteristics(BluetoothGattService service) {
+        mService = service;
+        mVersion = service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_VERSION_UUID);
+        mDescription = service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_DESC_UUID);
+        mMessage = service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID);
+        mRfcommTransfer = service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID);
+        mBleTransfer = service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID);
+    }
+
+    /**
+     * @return null if the service is missing or lacks any of the characteristics
+     */
+    static BLEChatCharacteristics resolve(BluetoothGattService service) {
+        if (service == null || !BLEChatProfile.SERVICE_UUID.equals(service.getUuid())) {
+            return null;
+        }
+        BLEChatCharacteristics characteristics = new BLEChatCharacteristics(service);
+        if (characteristics.mVersion == null || characteristics.mDescription == null
+                || characteristics.mMessage == null || characteristics.mRfcommTransfer == null
+                || characteristics.mBleTransfer == null) {
+            return null;
+        }
+        return characteristics;
+    }
+
+    /**
+     * @return which one of the chat characteristics it is, KIND_OTHER if none
+     */
+    int kindOf(BluetoothGattCharacteristic characteristic) {
+        // The transfer characteristics first, they carry the streams
+        if (characteristic == mBleTransfer) {
+            return KIND_BLE_TRANSFER;
+        } else if (characteristic == mMessage) {
+            return KIND_MESSAGE;
+        } else if (characteristic == mRfcommTransfer) {
+            return KIND_RFCOMM_TRANSFER;
+        } else if (characteristic == mVersion) {
+            return KIND_VERSION;
+        } else if (characteristic == mDescription) {
+            return KIND_DESCRIPTION;
+        }
+        return KIND_OTHER;
+    }
+}
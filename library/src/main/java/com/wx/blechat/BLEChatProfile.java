@@ -21,8 +21,37 @@ public class BLEChatProfile {
 
     public static final int SEND_INTERVAL = 100;
 
+    /**
+     * Default ATT MTU, and the ATT header size that must be subtracted from it to get the
+     * max size of a characteristic value written/notified in one packet.
+     */
+    public static final int DEFAULT_MTU = 23;
+    public static final int ATT_HEADER_SIZE = 3;
+    /**
+     * Max ATT MTU, requested by the Central right after service discovery. The stack
+     * settles on the highest value both sides support.
+     */
+    public static final int MAX_MTU = 517;
+
+    /**
+     * Flow control of the BLE transfer characteristic, see BLEFlowControl.
+     * Peers with a profile version lower than FLOW_CONTROL_VERSION don't grant credits.
+     */
+    public static final int FLOW_CONTROL_VERSION = 2;
+    public static final int STREAM_WINDOW = 8;
+    public static final int STREAM_INITIAL_CREDITS = 32;
+    public static final int STREAM_CREDIT_BATCH = 8;
+
+
+    /**
+     * Optional features are announced after the version number, e.g. "2+deflate".
+     * A Central supporting a feature announced by the Peripheral writes its own version
+     * back to the version characteristic, so both sides know the feature is in use.
+     */
+    public static final String FEATURE_SEPARATOR = "+";
+    public static final String FEATURE_DEFLATE = "deflate";
 
-    private static String mVersion = "1";
+    private static String mVersion = "2" + FEATURE_SEPARATOR + FEATURE_DEFLATE;
     private static String mDescription = "BLEChat - Juan Gomez :_AtilA_";
 
     /**
@@ -56,6 +85,40 @@ public class BLEChatProfile {
         return mVersion;
     }
 
+    /**
+     * Returns the numeric profile version announced by a peer, 0 if it can't be parsed
+     */
+    public static int parseVersion(String version) {
+        if (version == null) {
+            return 0;
+        }
+        int value = 0;
+        for (int i = 0; i < version.length(); i++) {
+            char c = version.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if the version announced by a peer includes the given feature
+     */
+    public static boolean hasFeature(String version, String feature) {
+        if (version == null) {
+            return false;
+        }
+        String[] parts = version.trim().split("\\" + FEATURE_SEPARATOR);
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equals(feature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static String getDescription(){
         return  mDescription;
     }
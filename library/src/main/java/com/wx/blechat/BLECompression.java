@@ -0,0 +1,180 @@
+package com.wx.blechat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression stage for messages and streams, applied before fragmentation.
+ * <p>
+ * Once both peers have agreed to use it (see {@link BLEChatProfile#FEATURE_DEFLATE}) every
+ * payload starts with an encoding byte:
+ * <pre>
+ *   ENCODING_RAW       the payload follows as is
+ *   ENCODING_DEFLATE   varint with the original length, then a raw deflate stream
+ * </pre>
+ * Payloads are only deflated when it makes them smaller. A preset dictionary with common
+ * chat and JSON words lets short messages compress too.
+ * <p>
+ * The Deflater and Inflater are reused for all the payloads, so the methods are synchronized.
+ * Call {@link #release()} when done.
+ */
+public class BLECompression {
+
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_DEFLATE = 1;
+
+    /**
+     * Smaller payloads are never worth deflating
+     */
+    public static final int MIN_DEFLATE_SIZE = 16;
+
+    private static final byte[] DICTIONARY = (
+            "\"timestamp\":\"type\":\"message\",\"text\":\"data\":\"name\":\"status\":\"value\":"
+            + "\"id\":\"from\":\"to\":true,false,null}]},{\"https://www. the and you for that "
+            + "this with have what are not but can will just your Hello Thanks ok? ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater mInflater = new Inflater(true);
+    private final int mMaxSize;
+    private byte[] mBuffer = new byte[256];
+
+    public BLECompression() {
+        this(BLEFrameCodec.DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * @param maxSize Max original size of a payload accepted by decode()
+     */
+    public BLECompression(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public byte[] encode(byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    /**
+     * @return the encoded payload, deflated if that makes it smaller
+     */
+    public synchronized byte[] encode(byte[] data, int offset, int length) {
+        if (length >= MIN_DEFLATE_SIZE) {
+            int headerSize = 1 + getVarintSize(length);
+            // Not worth it unless the result is smaller than the raw payload
+            int limit = length - headerSize;
+            ensureBuffer(headerSize + limit + 1);
+            mDeflater.reset();
+            mDeflater.setDictionary(DICTIONARY);
+            mDeflater.setInput(data, offset, length);
+            mDeflater.finish();
+            int size = 0;
+            while (!mDeflater.finished() && size <= limit) {
+                size += mDeflater.deflate(mBuffer, headerSize + size, limit + 1 - size);
+            }
+            if (mDeflater.finished() && size <= limit) {
+                mBuffer[0] = ENCODING_DEFLATE;
+                putVarint(mBuffer, 1, length);
+                return Arrays.copyOf(mBuffer, headerSize + size);
+            }
+        }
+        byte[] payload = new byte[length + 1];
+        payload[0] = ENCODING_RAW;
+        System.arraycopy(data, offset, payload, 1, length);
+        return payload;
+    }
+
+    public byte[] decode(byte[] payload) throws DataFormatException {
+        return decode(payload, 0, payload.length);
+    }
+
+    /**
+     * @return the original data of an encoded payload
+     * @throws DataFormatException if the payload is malformed or too big
+     */
+    public synchronized byte[] decode(byte[] payload, int offset, int length) throws DataFormatException {
+        if (length < 1) {
+            throw new DataFormatException("Empty payload");
+        }
+        int encoding = payload[offset];
+        if (encoding == ENCODING_RAW) {
+            return Arrays.copyOfRange(payload, offset + 1, offset + length);
+        }
+        if (encoding != ENCODING_DEFLATE) {
+            throw new DataFormatException("Unknown encoding: " + encoding);
+        }
+        int end = offset + length;
+        int position = offset + 1;
+        int size = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position >= end || shift > 28) {
+                throw new DataFormatException("Malformed length");
+            }
+            int b = payload[position++];
+            size |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (size < 0 || size > mMaxSize) {
+            throw new DataFormatException("Invalid length: " + size);
+        }
+
+        byte[] data = new byte[size];
+        mInflater.reset();
+        mInflater.setDictionary(DICTIONARY);
+        mInflater.setInput(payload, position, end - position);
+        int inflated = 0;
+        while (inflated < size) {
+            int count = mInflater.inflate(data, inflated, size - inflated);
+            if (count == 0 && (mInflater.finished() || mInflater.needsInput())) {
+                break;
+            }
+            inflated += count;
+        }
+        if (inflated != size) {
+            throw new DataFormatException("Payload shorter than announced");
+        }
+        // All the data is there, but the stream must end right after it: a truncated one
+        // can still hold the whole data while missing its last block
+        if (!mInflater.finished() && mInflater.inflate(new byte[1]) > 0) {
+            throw new DataFormatException("Payload longer than announced");
+        }
+        if (!mInflater.finished()) {
+            throw new DataFormatException("Truncated payload");
+        }
+        return data;
+    }
+
+    /**
+     * Frees the native resources of the Deflater and Inflater
+     */
+    public synchronized void release() {
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    private void ensureBuffer(int size) {
+        if (mBuffer.length < size) {
+            mBuffer = new byte[Math.max(size, mBuffer.length * 2)];
+        }
+    }
+
+    private static int getVarintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset] = (byte) value;
+    }
+}
@@ -0,0 +1,15 @@
+package com.wx.blechat;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Optional interface for peripheral chat listeners that want to know when the messages
+ * they sent have been delivered.
+ */
+public interface BLEDeliveryEvents {
+    /**
+     * A message sent with send() or sendStream() has been delivered to the device, or
+     * failed (status is SENT_SUCCEED or SENT_FAILED)
+     */
+    void onDelivered(BluetoothDevice device, int status);
+}
@@ -8,6 +8,9 @@ import android.bluetooth.BluetoothDevice;
 public interface BLEDiscoverCallback {
     void onInitSuccess();
     void onInitFailure(String message);
+    /**
+     * A device has been seen for the first time since it entered the scan cache
+     */
     void onScanResult(BluetoothDevice device, int rssi);
     void onScanFailed(String message);
 }
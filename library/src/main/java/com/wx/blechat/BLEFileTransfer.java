@@ -0,0 +1,170 @@
+package com.wx.blechat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams a file to an OutputStream (usually a RFCOMM socket) in fixed size chunks.
+ * <p>
+ * It's meant to run in a background executor: it reads one chunk and writes it before
+ * reading the next one, so no more than one chunk of the file is held in memory.
+ * Progress and throughput are reported periodically, and the transfer can be cancelled
+ * at any time. Listener methods are called from the thread running the transfer.
+ * <p>
+ * Writes are synchronized on the OutputStream, so other writers of the same stream must
+ * synchronize on it too.
+ */
+public class BLEFileTransfer implements Runnable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final long PROGRESS_INTERVAL = 250;
+
+    /**
+     * Where the file is read from. open() is called from the transfer thread.
+     */
+    public interface Source {
+        InputStream open() throws IOException;
+
+        /**
+         * @return length of the file in bytes, or -1 if unknown. Called after open()
+         */
+        long getLength();
+    }
+
+    public interface Listener {
+        /**
+         * @param total          Size of the file or -1 if unknown
+         * @param bytesPerSecond Average throughput since the transfer started
+         */
+        void onProgress(BLEFileTransfer transfer, long sent, long total, long bytesPerSecond);
+
+        void onComplete(BLEFileTransfer transfer, long sent, long elapsedMillis);
+
+        void onError(BLEFileTransfer transfer, IOException error);
+
+        void onCancelled(BLEFileTransfer transfer, long sent);
+    }
+
+    private final Source mSource;
+    private final OutputStream mOut;
+    private final int mChunkSize;
+    private final Listener mListener;
+
+    private volatile boolean mCancelled = false;
+    private volatile boolean mDone = false;
+    private volatile long mSent = 0;
+    private volatile long mTotal = -1;
+
+    public BLEFileTransfer(Source source, OutputStream out, Listener listener) {
+        this(source, out, DEFAULT_CHUNK_SIZE, listener);
+    }
+
+    public BLEFileTransfer(Source source, OutputStream out, int chunkSize, Listener listener) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        mSource = source;
+        mOut = out;
+        mChunkSize = chunkSize;
+        mListener = listener;
+    }
+
+    /**
+     * Stops the transfer after the chunk in progress, if any.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public boolean isDone() {
+        return mDone;
+    }
+
+    public long getBytesSent() {
+        return mSent;
+    }
+
+    /**
+     * @return size of the file or -1 if still unknown
+     */
+    public long getTotalBytes() {
+        return mTotal;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long lastProgress = start;
+        InputStream in = null;
+        try {
+            if (mCancelled) {
+                mListener.onCancelled(this, 0);
+                return;
+            }
+            in = mSource.open();
+            mTotal = mSource.getLength();
+            byte[] chunk = new byte[mChunkSize];
+            int bytesRead;
+            while ((bytesRead = readChunk(in, chunk)) > 0) {
+                if (mCancelled) {
+                    mListener.onCancelled(this, mSent);
+                    return;
+                }
+                synchronized (mOut) {
+                    mOut.write(chunk, 0, bytesRead);
+                }
+                mSent += bytesRead;
+
+                long now = System.nanoTime();
+                if (now - lastProgress >= PROGRESS_INTERVAL * 1000000L) {
+                    lastProgress = now;
+                    mListener.onProgress(this, mSent, mTotal, getBytesPerSecond(mSent, now - start));
+                }
+            }
+            synchronized (mOut) {
+                mOut.flush();
+            }
+            long elapsed = System.nanoTime() - start;
+            mListener.onProgress(this, mSent, mTotal, getBytesPerSecond(mSent, elapsed));
+            mListener.onComplete(this, mSent, elapsed / 1000000L);
+        } catch (IOException e) {
+            mListener.onError(this, e);
+        } finally {
+            mDone = true;
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do, the transfer is over anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the chunk as much as possible, so the socket gets big writes even from streams
+     * that return few bytes per read.
+     *
+     * @return bytes read, 0 at the end of the stream
+     */
+    private int readChunk(InputStream in, byte[] chunk) throws IOException {
+        int total = 0;
+        while (total < chunk.length) {
+            int bytesRead = in.read(chunk, total, chunk.length - total);
+            if (bytesRead < 0) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    private static long getBytesPerSecond(long bytes, long elapsedNanos) {
+        return elapsedNanos > 0 ? bytes * 1000000000L / elapsedNanos : 0;
+    }
+}
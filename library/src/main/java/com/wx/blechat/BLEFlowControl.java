@@ -0,0 +1,122 @@
+package com.wx.blechat;
+
+/**
+ * Credit based flow control for the BLE transfer characteristic.
+ * <p>
+ * The {@link Sender} keeps at most <i>window</i> fragments in flight (written but not yet
+ * completed by onCharacteristicWrite) and never sends more fragments than the credits granted
+ * by the receiver. The {@link Receiver} counts the fragments it has consumed and tells when
+ * it's time to grant a new batch of credits back, so a slow receiver can't be overrun.
+ * <p>
+ * Both classes are thread safe.
+ */
+public class BLEFlowControl {
+
+    private BLEFlowControl() {
+    }
+
+    public static class Sender {
+        private final int mWindow;
+        private final int mInitialCredits;
+        private int mInFlight;
+        private int mCredits;
+        private boolean mUnlimited = false;
+
+        /**
+         * @param window         Max number of fragments in flight
+         * @param initialCredits Credits the receiver grants implicitly when the connection starts
+         */
+        public Sender(int window, int initialCredits) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("Invalid window: " + window);
+            }
+            mWindow = window;
+            mInitialCredits = initialCredits;
+            mCredits = initialCredits;
+        }
+
+        /**
+         * Ignores credits, only the window is enforced. Used with peers that don't grant credits.
+         */
+        public synchronized void setUnlimited(boolean unlimited) {
+            mUnlimited = unlimited;
+        }
+
+        /**
+         * @return true if another fragment can be sent now
+         */
+        public synchronized boolean canSend() {
+            return mInFlight < mWindow && (mUnlimited || mCredits > 0);
+        }
+
+        /**
+         * A fragment has been handed to the stack
+         */
+        public synchronized void onSent() {
+            mInFlight++;
+            mCredits--;
+        }
+
+        /**
+         * A fragment write has completed (successfully or not)
+         */
+        public synchronized void onWriteComplete() {
+            if (mInFlight > 0) {
+                mInFlight--;
+            }
+        }
+
+        /**
+         * The receiver granted more credits
+         */
+        public synchronized void onCredits(int credits) {
+            mCredits += credits;
+        }
+
+        public synchronized int getInFlight() {
+            return mInFlight;
+        }
+
+        public synchronized int getCredits() {
+            return mCredits;
+        }
+
+        /**
+         * Back to the initial state, call it on every new connection
+         */
+        public synchronized void reset() {
+            mInFlight = 0;
+            mCredits = mInitialCredits;
+            mUnlimited = false;
+        }
+    }
+
+    public static class Receiver {
+        private final int mBatch;
+        private int mConsumed;
+
+        /**
+         * @param batch Number of consumed fragments that are granted back at once
+         */
+        public Receiver(int batch) {
+            if (batch <= 0) {
+                throw new IllegalArgumentException("Invalid batch: " + batch);
+            }
+            mBatch = batch;
+        }
+
+        /**
+         * A fragment has been consumed.
+         *
+         * @return number of credits to grant back to the sender now, 0 if none
+         */
+        public synchronized int onConsumed() {
+            mConsumed++;
+            if (mConsumed < mBatch) {
+                return 0;
+            }
+            mConsumed = 0;
+            return mBatch;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.wx.blechat;
+
+import java.util.Arrays;
+
+/**
+ * Framing layer for the BLE transfer characteristic.
+ * <p>
+ * A message of any length is split in fragments that fit in one ATT write/notification
+ * (MTU - 3 bytes). Every fragment starts with a small header:
+ * <pre>
+ *   byte 0     flags (FLAG_FIRST, FLAG_LAST, FLAG_COMPRESSED)
+ *   byte 1     message id (rolling 0..255)
+ *   byte 2..3  sequence number of the fragment inside the message (big endian)
+ *   byte 4..7  total message length, only present in the FLAG_FIRST fragment
+ * </pre>
+ * The receiving side feeds every fragment to a {@link Decoder}, which rebuilds the whole
+ * message in a reusable buffer and hands it to its {@link Decoder.Listener}.
+ * <p>
+ * A message sent with FLAG_COMPRESSED is a {@link BLECompression} payload. The flag travels
+ * with the message, so the receiver decodes every message right whether it was sent before
+ * or after compression was negotiated.
+ * <p>
+ * A credit frame is a bare header with FLAG_CREDIT set and the number of credits in the
+ * sequence field. It isn't part of any message.
+ * <p>
+ * This class is pure Java so it can be used by both BLECentralHelper and BLEPeripheralHelper.
+ */
+public class BLEFrameCodec {
+
+    public static final int FLAG_FIRST = 0x01;
+    public static final int FLAG_LAST = 0x02;
+    /**
+     * Control frame granting flow control credits to the sender, see {@link BLEFlowControl}
+     */
+    public static final int FLAG_CREDIT = 0x04;
+    /**
+     * The message is a {@link BLECompression} payload, only set in the FLAG_FIRST fragment
+     */
+    public static final int FLAG_COMPRESSED = 0x08;
+
+    public static final int HEADER_SIZE = 4;
+    public static final int FIRST_HEADER_SIZE = HEADER_SIZE + 4;
+
+    /**
+     * Max number of fragments a single message can be split in
+     */
+    public static final int MAX_FRAGMENTS = 0x10000;
+
+    /**
+     * Default max size of a reassembled message
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+
+    private BLEFrameCodec() {
+    }
+
+    /**
+     * Returns the number of fragments needed to send a message of the given length
+     *
+     * @param length       Message length in bytes
+     * @param fragmentSize Max size of every fragment, header included (MTU - 3)
+     */
+    public static int getFragmentCount(int length, int fragmentSize) {
+        checkFragmentSize(fragmentSize);
+        int firstPayload = fragmentSize - FIRST_HEADER_SIZE;
+        if (length <= firstPayload) {
+            return 1;
+        }
+        int payload = fragmentSize - HEADER_SIZE;
+        return 1 + (length - firstPayload + payload - 1) / payload;
+    }
+
+    /**
+     * Builds a credit frame
+     */
+    public static byte[] encodeCredit(int credits) {
+        if (credits <= 0 || credits > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid credits: " + credits);
+        }
+        return new byte[]{(byte) FLAG_CREDIT, 0, (byte) (credits >> 8), (byte) credits};
+    }
+
+    public static boolean isCredit(byte[] frame) {
+        return frame != null && frame.length >= HEADER_SIZE && (frame[0] & FLAG_CREDIT) != 0;
+    }
+
+    /**
+     * @return the credits granted by a credit frame
+     */
+    public static int getCredits(byte[] frame) {
+        return ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+    }
+
+    private static void checkFragmentSize(int fragmentSize) {
+        if (fragmentSize <= FIRST_HEADER_SIZE) {
+            throw new IllegalArgumentException("Fragment size too small: " + fragmentSize);
+        }
+    }
+
+    /**
+     * Splits messages in fragments. Not thread safe, use one Encoder per sender.
+     */
+    public static class Encoder {
+        private int mFragmentSize;
+        private int mMessageId = 0;
+
+        private byte[] mData;
+        private int mOffset;
+        private int mEnd;
+        private int mSequence;
+        private boolean mFirst;
+        private boolean mCompressed;
+
+        /**
+         * @param fragmentSize Max size of every fragment, header included (MTU - 3)
+         */
+        public Encoder(int fragmentSize) {
+            setFragmentSize(fragmentSize);
+        }
+
+        /**
+         * Changes the fragment size. It will be applied to the next message.
+         */
+        public void setFragmentSize(int fragmentSize) {
+            checkFragmentSize(fragmentSize);
+            mFragmentSize = fragmentSize;
+        }
+
+        public int getFragmentSize() {
+            return mFragmentSize;
+        }
+
+        /**
+         * Starts a new message. Any pending fragment of the previous message is discarded.
+         * The data is not copied, so it mustn't change until the last fragment is taken.
+         */
+        public void begin(byte[] data) {
+            begin(data, 0, data.length);
+        }
+
+        public void begin(byte[] data, int offset, int length) {
+            begin(data, offset, length, false);
+        }
+
+        /**
+         * @param compressed The data is a {@link BLECompression} payload, see FLAG_COMPRESSED
+         */
+        public void begin(byte[] data, boolean compressed) {
+            begin(data, 0, data.length, compressed);
+        }
+
+        public void begin(byte[] data, int offset, int length, boolean compressed) {
+            if (offset < 0 || length < 0 || offset + length > data.length) {
+                throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length);
+            }
+            if (getFragmentCount(length, mFragmentSize) > MAX_FRAGMENTS) {
+                throw new IllegalArgumentException("Message too big: " + length + " bytes");
+            }
+            mData = data;
+            mOffset = offset;
+            mEnd = offset + length;
+            mSequence = 0;
+            mFirst = true;
+            mCompressed = compressed;
+            mMessageId = (mMessageId + 1) & 0xFF;
+        }
+
+        /**
+         * Discards the fragments of the current message not taken yet
+         */
+        public void cancel() {
+            mData = null;
+        }
+
+        /**
+         * @return true if there are fragments of the current message still to be taken
+         */
+        public boolean hasNext() {
+            return mData != null && (mFirst || mOffset < mEnd);
+        }
+
+        /**
+         * @return the next fragment of the current message, sized to its content
+         */
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new IllegalStateException("No more fragments");
+            }
+            int headerSize = mFirst ? FIRST_HEADER_SIZE : HEADER_SIZE;
+            int payload = Math.min(mFragmentSize - headerSize, mEnd - mOffset);
+            boolean last = mOffset + payload == mEnd;
+
+            byte[] fragment = new byte[headerSize + payload];
+            int flags = (mFirst ? FLAG_FIRST : 0) | (last ? FLAG_LAST : 0)
+                    | (mFirst && mCompressed ? FLAG_COMPRESSED : 0);
+            fragment[0] = (byte) flags;
+            fragment[1] = (byte) mMessageId;
+            fragment[2] = (byte) (mSequence >> 8);
+            fragment[3] = (byte) mSequence;
+            if (mFirst) {
+                int length = mEnd - mOffset;
+                fragment[4] = (byte) (length >> 24);
+                fragment[5] = (byte) (length >> 16);
+                fragment[6] = (byte) (length >> 8);
+                fragment[7] = (byte) length;
+            }
+            System.arraycopy(mData, mOffset, fragment, headerSize, payload);
+
+            mOffset += payload;
+            mSequence++;
+            mFirst = false;
+            if (last) {
+                mData = null;
+            }
+            return fragment;
+        }
+    }
+
+    /**
+     * Rebuilds messages from their fragments. Not thread safe, use one Decoder per sender.
+     * <p>
+     * The reassembly buffer is reused between messages, it only grows when a bigger message
+     * arrives.
+     */
+    public static class Decoder {
+
+        public interface Listener {
+            /**
+             * A whole message has been received. The buffer is owned by the Decoder and it's
+             * only valid during this call, copy it if you need to keep it.
+             */
+            void onMessage(byte[] buffer, int offset, int length);
+
+            /**
+             * A fragment was lost, duplicated or malformed. The current message is discarded.
+             */
+            void onError(String error);
+        }
+
+        private final int mMaxMessageSize;
+        private final Listener mListener;
+
+        private byte[] mBuffer = new byte[0];
+        private int mLength;
+        private int mExpectedLength;
+        private int mMessageId;
+        private int mNextSequence;
+        private boolean mInMessage = false;
+        private boolean mCompressed;
+
+        public Decoder(Listener listener) {
+            this(DEFAULT_MAX_MESSAGE_SIZE, listener);
+        }
+
+        public Decoder(int maxMessageSize, Listener listener) {
+            mMaxMessageSize = maxMessageSize;
+            mListener = listener;
+        }
+
+        public boolean decode(byte[] fragment) {
+            return decode(fragment, 0, fragment.length);
+        }
+
+        /**
+         * Feeds a fragment to the decoder.
+         *
+         * @return false if the fragment was rejected
+         */
+        public boolean decode(byte[] fragment, int offset, int length) {
+            if (length < HEADER_SIZE) {
+                return fail("Fragment too short: " + length);
+            }
+            int flags = fragment[offset] & 0xFF;
+            int messageId = fragment[offset + 1] & 0xFF;
+            int sequence = ((fragment[offset + 2] & 0xFF) << 8) | (fragment[offset + 3] & 0xFF);
+            int headerSize = HEADER_SIZE;
+
+            if ((flags & FLAG_CREDIT) != 0) {
+                // Control frame, not part of any message
+                return true;
+            }
+            if ((flags & FLAG_FIRST) != 0) {
+                if (mInMessage) {
+                    mInMessage = false;
+                    mListener.onError("Message " + mMessageId + " incomplete, discarded");
+                }
+                if (length < FIRST_HEADER_SIZE || sequence != 0) {
+                    return fail("Malformed first fragment");
+                }
+                int total = ((fragment[offset + 4] & 0xFF) << 24)
+                        | ((fragment[offset + 5] & 0xFF) << 16)
+                        | ((fragment[offset + 6] & 0xFF) << 8)
+                        | (fragment[offset + 7] & 0xFF);
+                if (total < 0 || total > mMaxMessageSize) {
+                    return fail("Invalid message length: " + total);
+                }
+                if (mBuffer.length < total) {
+                    mBuffer = new byte[total];
+                }
+                headerSize = FIRST_HEADER_SIZE;
+                mExpectedLength = total;
+                mLength = 0;
+                mMessageId = messageId;
+                mNextSequence = 0;
+                mInMessage = true;
+                mCompressed = (flags & FLAG_COMPRESSED) != 0;
+            } else if (!mInMessage) {
+                return fail("Fragment " + sequence + " of message " + messageId + " without its first fragment");
+            } else if (messageId != mMessageId || sequence != mNextSequence) {
+                mInMessage = false;
+                return fail("Unexpected fragment " + messageId + "/" + sequence
+                        + ", expected " + mMessageId + "/" + mNextSequence);
+            }
+
+            int payload = length - headerSize;
+            if (mLength + payload > mExpectedLength) {
+                mInMessage = false;
+                return fail("Message " + messageId + " longer than announced");
+            }
+            System.arraycopy(fragment, offset + headerSize, mBuffer, mLength, payload);
+            mLength += payload;
+            mNextSequence++;
+
+            if ((flags & FLAG_LAST) != 0) {
+                mInMessage = false;
+                if (mLength != mExpectedLength) {
+                    return fail("Message " + messageId + " shorter than announced");
+                }
+                mListener.onMessage(mBuffer, 0, mLength);
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the message being handed to {@link Listener#onMessage} was sent with
+         * FLAG_COMPRESSED, its content has to be decoded with {@link BLECompression}
+         */
+        public boolean isCompressed() {
+            return mCompressed;
+        }
+
+        /**
+         * Discards any partially received message
+         */
+        public void reset() {
+            mInMessage = false;
+            mLength = 0;
+        }
+
+        private boolean fail(String error) {
+            mListener.onError(error);
+            return false;
+        }
+    }
+
+    /**
+     * Convenience method to copy a message handed by {@link Decoder.Listener#onMessage}
+     */
+    public static byte[] copyOf(byte[] buffer, int offset, int length) {
+        return Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+}
@@ -0,0 +1,137 @@
+package com.wx.blechat;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+
+/**
+ * {@link BLETransport} over the BLE chat service, acting as Central.
+ * <p>
+ * Messages go through the stream of {@link BLECentralHelper#sendData(byte[])}: split in MTU
+ * sized fragments, flow controlled and compressed when negotiated. The helper has a single
+ * connection, so there can only be one transport connected at a time. Events come through
+ * the callback dispatcher of the helper.
+ */
+public class BLEGattTransport implements BLETransport {
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final BLECentralHelper mHelper;
+    private volatile Listener mListener;
+    private volatile boolean mConnected = false;
+
+    public BLEGattTransport(Context context, BluetoothDevice device) {
+        this(context, device, BLECentralHelper.getInstance());
+    }
+
+    public BLEGattTransport(Context context, BluetoothDevice device, BLECentralHelper helper) {
+        mContext = context;
+        mDevice = device;
+        mHelper = helper;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void connect() {
+        mHelper.register(mEvents);
+        mHelper.connect(mContext, mDevice);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public void send(byte[] data, Completion completion) {
+        mHelper.sendData(data, completion);
+    }
+
+    @Override
+    public int getMtu() {
+        return mHelper.getMtu();
+    }
+
+    @Override
+    public void close() {
+        mHelper.disconnect();
+        mHelper.unregister(mEvents);
+        mConnected = false;
+    }
+
+    private final BLECentralChatEvents mEvents = new BLECentralChatEvents() {
+        @Override
+        public void onConnect() {
+            // Services are discovered, sends are queued after the setup of the connection
+            mConnected = true;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onConnected(BLEGattTransport.this);
+            }
+        }
+
+        @Override
+        public void onDisconnect() {
+            mConnected = false;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onDisconnected(BLEGattTransport.this);
+            }
+        }
+
+        @Override
+        public void onDataStream(byte[] data) {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onReceive(BLEGattTransport.this, data);
+            }
+        }
+
+        @Override
+        public void onConnectionError(String error) {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onError(BLEGattTransport.this, error);
+            }
+        }
+
+        @Override
+        public void onVersion(String version) {
+        }
+
+        @Override
+        public void onDescription(String description) {
+        }
+
+        @Override
+        public void onRfcommConnect() {
+        }
+
+        @Override
+        public void onMtuChanged(int status, int newMtu) {
+        }
+
+        @Override
+        public void onMessage(String msg) {
+        }
+
+        @Override
+        public void onData(byte[] data) {
+        }
+
+        @Override
+        public void onStreamSent(int status) {
+        }
+
+        @Override
+        public void onInfo(String msg) {
+        }
+    };
+}
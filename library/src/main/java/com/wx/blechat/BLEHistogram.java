@@ -0,0 +1,119 @@
+package com.wx.blechat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram with power of two buckets.
+ * <p>
+ * Bucket 0 counts the zeros, bucket i (i &gt; 0) the values in [2^(i-1), 2^i). Recording
+ * costs a couple of atomic adds, so it can be used in the send and receive paths. The
+ * percentiles of a {@link Snapshot} are the upper bound of the bucket they fall in, good
+ * enough to spot regressions and tune deployments.
+ */
+public class BLEHistogram {
+
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records a value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(getBucket(value));
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Retry, another thread raised the max meanwhile
+        }
+    }
+
+    public static int getBucket(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * @return the highest value that falls in the given bucket
+     */
+    public static long getBucketLimit(int bucket) {
+        return bucket == 0 ? 0 : bucket == 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        return new Snapshot(buckets, count, mSum.get(), mMax.get());
+    }
+
+    public static class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount > 0 ? (double) mSum / mCount : 0;
+        }
+
+        /**
+         * @param percentile 0..1, e.g. 0.99
+         * @return upper bound of the values under the percentile, 0 if there are none
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile * mCount));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(getBucketLimit(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * @return count of every bucket, see {@link BLEHistogram}
+         */
+        public long[] getBuckets() {
+            return mBuckets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + " mean=" + Math.round(getMean()) + " p50=" + getPercentile(0.5)
+                    + " p99=" + getPercentile(0.99) + " max=" + mMax;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.wx.blechat;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * Copy-on-write list of listeners.
+ * <p>
+ * Listeners are usually registered from the UI thread while events are fired from binder,
+ * accept or connected threads. Adding or removing a listener copies the array, so firing
+ * an event only needs to read the current array: no lock, no iterator and no
+ * ConcurrentModificationException.
+ * <pre>
+ *   for (BLEChatEvents listener : mListeners.array()) {
+ *       listener.onMessage(msg);
+ *   }
+ * </pre>
+ */
+public class BLEListenerList<T> {
+    private volatile T[] mListeners;
+
+    @SuppressWarnings("unchecked")
+    public BLEListenerList(Class<T> type) {
+        mListeners = (T[]) Array.newInstance(type, 0);
+    }
+
+    /**
+     * Adds a listener. Adding the same listener twice has no effect.
+     */
+    public synchronized void add(T listener) {
+        T[] listeners = mListeners;
+        for (T registered : listeners) {
+            if (registered == listener) {
+                return;
+            }
+        }
+        T[] copy = Arrays.copyOf(listeners, listeners.length + 1);
+        copy[listeners.length] = listener;
+        mListeners = copy;
+    }
+
+    public synchronized void remove(T listener) {
+        T[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                T[] copy = Arrays.copyOf(listeners, listeners.length - 1);
+                System.arraycopy(listeners, i + 1, copy, i, listeners.length - i - 1);
+                mListeners = copy;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the current listeners. The array must not be modified.
+     */
+    public T[] array() {
+        return mListeners;
+    }
+
+    public boolean isEmpty() {
+        return mListeners.length == 0;
+    }
+}
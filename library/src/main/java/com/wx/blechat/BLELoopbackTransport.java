@@ -0,0 +1,157 @@
+package com.wx.blechat;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * In-memory {@link BLETransport}, one end of a pair created by {@link #newPair(int)}.
+ * <p>
+ * Whatever is sent on one end is received by the other, with no latency and no size limit,
+ * so the layers above the transport run at full speed on a plain JVM. Events go through the
+ * given Executor, in the sending thread by default. It must run tasks in order.
+ */
+public class BLELoopbackTransport implements BLETransport {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private final int mMtu;
+    private final Executor mExecutor;
+    // Shared by both ends, guards their connection state
+    private final Object mPairLock;
+    private BLELoopbackTransport mPeer;
+    private volatile Listener mListener;
+    private volatile boolean mConnected = false;
+    private volatile boolean mClosed = false;
+
+    private BLELoopbackTransport(int mtu, Executor executor, Object pairLock) {
+        mMtu = mtu;
+        mExecutor = executor;
+        mPairLock = pairLock;
+    }
+
+    public static BLELoopbackTransport[] newPair(int mtu) {
+        return newPair(mtu, DIRECT);
+    }
+
+    /**
+     * @param mtu      Reported by getMtu() on both ends
+     * @param executor Runs the deliveries and the events of both ends
+     */
+    public static BLELoopbackTransport[] newPair(int mtu, Executor executor) {
+        Object pairLock = new Object();
+        BLELoopbackTransport first = new BLELoopbackTransport(mtu, executor, pairLock);
+        BLELoopbackTransport second = new BLELoopbackTransport(mtu, executor, pairLock);
+        first.mPeer = second;
+        second.mPeer = first;
+        return new BLELoopbackTransport[]{first, second};
+    }
+
+    public BLELoopbackTransport getPeer() {
+        return mPeer;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Connects both ends, unless one of them was closed
+     */
+    @Override
+    public void connect() {
+        synchronized (mPairLock) {
+            if (mConnected || mClosed || mPeer.mClosed) {
+                return;
+            }
+            mConnected = true;
+            mPeer.mConnected = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onConnected();
+                mPeer.onConnected();
+            }
+        });
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public void send(byte[] data, final Completion completion) {
+        if (!mConnected) {
+            if (completion != null) {
+                completion.onComplete(false);
+            }
+            return;
+        }
+        // Copied like a real link would, so the sender can reuse its buffer
+        final byte[] copy = Arrays.copyOf(data, data.length);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean delivered = mPeer.mConnected;
+                if (delivered) {
+                    Listener listener = mPeer.mListener;
+                    if (listener != null) {
+                        listener.onReceive(mPeer, copy);
+                    }
+                }
+                if (completion != null) {
+                    completion.onComplete(delivered);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Disconnects both ends. This end can't be connected again.
+     */
+    @Override
+    public void close() {
+        boolean wasConnected;
+        synchronized (mPairLock) {
+            mClosed = true;
+            wasConnected = mConnected;
+            mConnected = false;
+            mPeer.mConnected = false;
+        }
+        if (wasConnected) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onDisconnected();
+                    mPeer.onDisconnected();
+                }
+            });
+        }
+    }
+
+    private void onConnected() {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onConnected(this);
+        }
+    }
+
+    private void onDisconnected() {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onDisconnected(this);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.wx.blechat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Transfer metrics of a connection: counters, MTU and latency histograms.
+ * <p>
+ * Counters are striped: every thread adds to the stripe picked by its id, and reading a
+ * counter sums the stripes. Stripes are a cache line apart, so the binder, I/O and
+ * internal threads don't contend when updating them. There are no locks anywhere, the
+ * cost on the hot path is one atomic add per counter.
+ * <p>
+ * Read them through {@link #snapshot()}.
+ */
+public class BLEMetrics {
+
+    public static final int BYTES_SENT = 0;
+    public static final int BYTES_RECEIVED = 1;
+    public static final int MESSAGES_SENT = 2;
+    public static final int MESSAGES_RECEIVED = 3;
+    /**
+     * Writes started again after the stack rejected them
+     */
+    public static final int WRITE_RETRIES = 4;
+    /**
+     * Writes or notifications that failed or timed out
+     */
+    public static final int WRITE_FAILURES = 5;
+    /**
+     * Writes or notifications rejected by the stack because it was busy
+     */
+    public static final int GATT_BUSY = 6;
+    public static final int RECONNECTS = 7;
+
+    private static final int COUNTERS = 8;
+    // 16 longs per stripe, so two stripes never share a cache line
+    private static final int STRIPE_SIZE = 16;
+    private static final int STRIPES = 4;
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(STRIPES * STRIPE_SIZE);
+    private final BLEHistogram mWriteLatency = new BLEHistogram();
+    private final BLEHistogram mConnectionSetup = new BLEHistogram();
+    private volatile int mMtu = BLEChatProfile.DEFAULT_MTU;
+
+    public void increment(int counter) {
+        add(counter, 1);
+    }
+
+    public void add(int counter, long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        mCounters.addAndGet(stripe * STRIPE_SIZE + counter, delta);
+    }
+
+    public long get(int counter) {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += mCounters.get(stripe * STRIPE_SIZE + counter);
+        }
+        return sum;
+    }
+
+    /**
+     * Records the time from a write (or notification) being issued to its completion
+     */
+    public void recordWriteLatency(long micros) {
+        mWriteLatency.record(micros);
+    }
+
+    /**
+     * Records the time from the connection request to the connection being usable
+     */
+    public void recordConnectionSetup(long millis) {
+        mConnectionSetup.record(millis);
+    }
+
+    public void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    public Snapshot snapshot() {
+        long[] counters = new long[COUNTERS];
+        for (int i = 0; i < COUNTERS; i++) {
+            counters[i] = get(i);
+        }
+        return new Snapshot(counters, mMtu, mWriteLatency.snapshot(), mConnectionSetup.snapshot());
+    }
+
+    /**
+     * Values of the metrics at a point in time. Counters are read one by one, so they can be
+     * slightly out of sync with each other if the connection is busy.
+     */
+    public static class Snapshot {
+        private final long[] mCounters;
+        private final int mMtu;
+        private final BLEHistogram.Snapshot mWriteLatency;
+        private final BLEHistogram.Snapshot mConnectionSetup;
+
+        Snapshot(long[] counters, int mtu, BLEHistogram.Snapshot writeLatency, BLEHistogram.Snapshot connectionSetup) {
+            mCounters = counters;
+            mMtu = mtu;
+            mWriteLatency = writeLatency;
+            mConnectionSetup = connectionSetup;
+        }
+
+        /**
+         * @param counter One of the BLEMetrics counters, e.g. BLEMetrics.BYTES_SENT
+         */
+        public long get(int counter) {
+            return mCounters[counter];
+        }
+
+        public long getBytesSent() {
+            return mCounters[BYTES_SENT];
+        }
+
+        public long getBytesReceived() {
+            return mCounters[BYTES_RECEIVED];
+        }
+
+        public long getMessagesSent() {
+            return mCounters[MESSAGES_SENT];
+        }
+
+        public long getMessagesReceived() {
+            return mCounters[MESSAGES_RECEIVED];
+        }
+
+        public long getWriteRetries() {
+            return mCounters[WRITE_RETRIES];
+        }
+
+        public long getWriteFailures() {
+            return mCounters[WRITE_FAILURES];
+        }
+
+        public long getGattBusy() {
+            return mCounters[GATT_BUSY];
+        }
+
+        public long getReconnects() {
+            return mCounters[RECONNECTS];
+        }
+
+        public int getMtu() {
+            return mMtu;
+        }
+
+        /**
+         * @return write completion latency, in micros
+         */
+        public BLEHistogram.Snapshot getWriteLatency() {
+            return mWriteLatency;
+        }
+
+        /**
+         * @return connection setup time, in millis
+         */
+        public BLEHistogram.Snapshot getConnectionSetup() {
+            return mConnectionSetup;
+        }
+
+        @Override
+        public String toString() {
+            return "sent=" + getBytesSent() + "B/" + getMessagesSent()
+                    + " received=" + getBytesReceived() + "B/" + getMessagesReceived()
+                    + " retries=" + getWriteRetries() + " failures=" + getWriteFailures()
+                    + " busy=" + getGattBusy() + " reconnects=" + getReconnects() + " mtu=" + mMtu
+                    + " writeLatency[" + mWriteLatency + "] setup[" + mConnectionSetup + "]";
+        }
+    }
+}
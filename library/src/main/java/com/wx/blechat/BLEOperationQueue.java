@@ -0,0 +1,317 @@
+package com.wx.blechat;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serializes the GATT operations of a connection.
+ * <p>
+ * Android only allows one outstanding GATT operation per connection, any other operation
+ * started meanwhile fails (or is silently dropped). This queue issues the next operation
+ * as soon as the BluetoothGattCallback of the current one fires, so the callback must call
+ * {@link #onCharacteristicRead}, {@link #onCharacteristicWrite}, {@link #onDescriptorWrite}
+ * and {@link #onMtuChanged}.
+ * <p>
+ * An operation that doesn't complete in time is reported as a timeout and the queue moves on.
+ * An operation the stack refuses to start (it's busy) is retried a few times before failing.
+ */
+public class BLEOperationQueue {
+
+    private static final String TAG = "BLEOperationQueue";
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+    public static final int MAX_BUSY_RETRIES = 3;
+    public static final long BUSY_RETRY_DELAY = 10;
+
+    public enum Type {
+        READ,
+        WRITE,
+        WRITE_DESCRIPTOR,
+        NOTIFICATION,
+        MTU,
+    }
+
+    public interface Listener {
+        /**
+         * The operation has finished. Status is the one received in the GATT callback, or
+         * BluetoothGatt.GATT_FAILURE if the operation couldn't be started.
+         */
+        void onOperationComplete(Operation operation, int status);
+
+        void onOperationTimeout(Operation operation);
+    }
+
+    /**
+     * A single GATT operation. Use the static factory methods to create them.
+     */
+    public static class Operation {
+        private final Type mType;
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final BluetoothGattDescriptor mDescriptor;
+        private final byte[] mValue;
+        private final int mArg;
+        private long mTimeout = DEFAULT_TIMEOUT;
+        private int mRetries = 0;
+        private long mStartTime;
+
+        private Operation(Type type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value, int arg) {
+            mType = type;
+            mCharacteristic = characteristic;
+            mDescriptor = descriptor;
+            mValue = value;
+            mArg = arg;
+        }
+
+        public static Operation read(BluetoothGattCharacteristic characteristic) {
+            return new Operation(Type.READ, characteristic, null, null, 0);
+        }
+
+        /**
+         * @param writeType One of BluetoothGattCharacteristic.WRITE_TYPE_*
+         */
+        public static Operation write(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+            return new Operation(Type.WRITE, characteristic, null, value, writeType);
+        }
+
+        public static Operation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+            return new Operation(Type.WRITE_DESCRIPTOR, null, descriptor, value, 0);
+        }
+
+        /**
+         * Enables/disables local notifications. It has no GATT callback, so it completes
+         * as soon as it is executed, but it keeps its place in the queue.
+         */
+        public static Operation notification(BluetoothGattCharacteristic characteristic, boolean enable) {
+            return new Operation(Type.NOTIFICATION, characteristic, null, null, enable ? 1 : 0);
+        }
+
+        public static Operation requestMtu(int mtu) {
+            return new Operation(Type.MTU, null, null, null, mtu);
+        }
+
+        public Operation setTimeout(long timeout) {
+            mTimeout = timeout;
+            return this;
+        }
+
+        public Type getType() {
+            return mType;
+        }
+
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        public BluetoothGattDescriptor getDescriptor() {
+            return mDescriptor;
+        }
+
+        public byte[] getValue() {
+            return mValue;
+        }
+
+        public int getMtu() {
+            return mArg;
+        }
+
+        private boolean execute(BluetoothGatt gatt) {
+            switch (mType) {
+                case READ:
+                    return gatt.readCharacteristic(mCharacteristic);
+                case WRITE:
+                    mCharacteristic.setWriteType(mArg);
+                    mCharacteristic.setValue(mValue);
+                    return gatt.writeCharacteristic(mCharacteristic);
+                case WRITE_DESCRIPTOR:
+                    mDescriptor.setValue(mValue);
+                    return gatt.writeDescriptor(mDescriptor);
+                case NOTIFICATION:
+                    return gatt.setCharacteristicNotification(mCharacteristic, mArg != 0);
+                case MTU:
+                    return gatt.requestMtu(mArg);
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mType + (mCharacteristic != null ? " " + mCharacteristic.getUuid() : "");
+        }
+    }
+
+    private final BluetoothGatt mGatt;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final ArrayDeque<Operation> mQueue = new ArrayDeque<>();
+    private Operation mCurrent;
+    private long mDeadline;
+    private boolean mClosed = false;
+    private boolean mRetryPending = false;
+    private BLEMetrics mMetrics;
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BLEOperationQueue.this) {
+                mRetryPending = false;
+            }
+            next();
+        }
+    };
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Operation timedOut;
+            synchronized (BLEOperationQueue.this) {
+                if (SystemClock.uptimeMillis() < mDeadline) {
+                    // Stale timeout of an operation that already completed
+                    return;
+                }
+                timedOut = mCurrent;
+                mCurrent = null;
+            }
+            if (timedOut != null) {
+                Log.w(TAG, "Operation timeout: " + timedOut);
+                mListener.onOperationTimeout(timedOut);
+                next();
+            }
+        }
+    };
+
+    /**
+     * @param gatt     The connection
+     * @param handler  Handler used to schedule the timeouts
+     * @param listener Will receive the result of every operation
+     */
+    public BLEOperationQueue(BluetoothGatt gatt, Handler handler, Listener listener) {
+        mGatt = gatt;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Sets where the busy rejections, retries and write latencies are recorded
+     */
+    public synchronized void setMetrics(BLEMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public void enqueue(Operation operation) {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mQueue.add(operation);
+        }
+        next();
+    }
+
+    /**
+     * @return number of operations waiting, the one in progress included
+     */
+    public synchronized int size() {
+        return mQueue.size() + (mCurrent != null ? 1 : 0);
+    }
+
+    /**
+     * Drops every pending operation. Call it when the connection is lost.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mQueue.clear();
+        mCurrent = null;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mRetryRunnable);
+    }
+
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        complete(Type.READ, characteristic, status);
+    }
+
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        complete(Type.WRITE, characteristic, status);
+    }
+
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        complete(Type.WRITE_DESCRIPTOR, descriptor, status);
+    }
+
+    public void onMtuChanged(int status) {
+        complete(Type.MTU, null, status);
+    }
+
+    private void complete(Type type, Object target, int status) {
+        Operation completed;
+        synchronized (this) {
+            completed = mCurrent;
+            if (completed == null || completed.mType != type
+                    || (target != null && target != completed.mCharacteristic && target != completed.mDescriptor)) {
+                // Not ours (or already timed out)
+                return;
+            }
+            mCurrent = null;
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            if (mMetrics != null && type == Type.WRITE) {
+                mMetrics.recordWriteLatency((System.nanoTime() - completed.mStartTime) / 1000);
+            }
+        }
+        mListener.onOperationComplete(completed, status);
+        next();
+    }
+
+    /**
+     * Starts the next operation, if there is none in progress
+     */
+    private void next() {
+        while (true) {
+            Operation operation;
+            boolean started;
+            synchronized (this) {
+                if (mCurrent != null || mClosed || mRetryPending || mQueue.isEmpty()) {
+                    return;
+                }
+                operation = mQueue.poll();
+                mCurrent = operation;
+                operation.mStartTime = System.nanoTime();
+                // Keep the lock while executing, so a fast callback can't see an empty mCurrent
+                started = operation.execute(mGatt);
+                if (started && operation.mType != Type.NOTIFICATION) {
+                    mDeadline = SystemClock.uptimeMillis() + operation.mTimeout;
+                    mHandler.postDelayed(mTimeoutRunnable, operation.mTimeout);
+                    return;
+                }
+                mCurrent = null;
+                if (!started && operation.mType != Type.NOTIFICATION) {
+                    if (mMetrics != null) {
+                        mMetrics.increment(BLEMetrics.GATT_BUSY);
+                    }
+                    if (operation.mRetries < MAX_BUSY_RETRIES) {
+                        // Usually the stack is still busy with a previous operation, give it
+                        // some time and try again, keeping the order
+                        operation.mRetries++;
+                        if (mMetrics != null && operation.mType == Type.WRITE) {
+                            mMetrics.increment(BLEMetrics.WRITE_RETRIES);
+                        }
+                        mQueue.addFirst(operation);
+                        mRetryPending = true;
+                        mHandler.postDelayed(mRetryRunnable, BUSY_RETRY_DELAY);
+                        return;
+                    }
+                }
+            }
+            if (!started) {
+                Log.w(TAG, "Couldn't start operation: " + operation);
+            }
+            mListener.onOperationComplete(operation, started ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+        }
+    }
+}
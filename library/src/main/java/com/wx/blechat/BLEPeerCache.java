@@ -0,0 +1,209 @@
+package com.wx.blechat;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent table of the peers we have been connected to, keyed by address.
+ * <p>
+ * Every entry keeps what the peer told us the last time: profile version, description and
+ * negotiated MTU, and when it was seen. Knowing it, a reconnect can go straight to the peer
+ * without scanning, and skip reading its description again. The version is kept for
+ * information only: it's read on every connection, as the peer may have been upgraded.
+ * <p>
+ * Entries older than maxAge are not trusted anymore and dropped, and when the table is full
+ * the least recently seen peer makes room for the new one. The table is saved to the given
+ * SharedPreferences, one string per peer, or only kept in memory if there are none. Times are
+ * wall clock millis, passed in by the caller, as they must survive reboots.
+ */
+public class BLEPeerCache {
+
+    public static final int DEFAULT_MAX_PEERS = 32;
+    public static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    public static final String PREFERENCES_NAME = "blechat_peers";
+
+    public static final class Peer {
+        private final String mAddress;
+        private final String mVersion;
+        private final String mDescription;
+        private final int mMtu;
+        private final long mLastSeen;
+
+        public Peer(String address, String version, String description, int mtu, long lastSeen) {
+            mAddress = address;
+            mVersion = version;
+            mDescription = description;
+            mMtu = mtu;
+            mLastSeen = lastSeen;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getVersion() {
+            return mVersion;
+        }
+
+        public String getDescription() {
+            return mDescription;
+        }
+
+        public int getMtu() {
+            return mMtu;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        @Override
+        public String toString() {
+            return mAddress + " " + mVersion + " MTU " + mMtu;
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+    private final int mMaxPeers;
+    private final long mMaxAge;
+    // Least recently seen first
+    private final LinkedHashMap<String, Peer> mPeers = new LinkedHashMap<>();
+
+    public BLEPeerCache(SharedPreferences preferences) {
+        this(preferences, DEFAULT_MAX_PEERS, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param preferences Where the table is saved, null to keep it in memory only
+     * @param maxPeers    Max number of peers kept
+     * @param maxAge      Millis after which what a peer told us is not trusted anymore
+     */
+    public BLEPeerCache(SharedPreferences preferences, int maxPeers, long maxAge) {
+        mPreferences = preferences;
+        mMaxPeers = maxPeers;
+        mMaxAge = maxAge;
+        if (preferences != null) {
+            load(preferences);
+        }
+    }
+
+    private void load(SharedPreferences preferences) {
+        List<Peer> peers = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof String) {
+                Peer peer = decode(entry.getKey(), (String) entry.getValue());
+                if (peer != null) {
+                    peers.add(peer);
+                }
+            }
+        }
+        // Oldest first, so the access order matches when they were seen
+        Collections.sort(peers, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                return a.mLastSeen < b.mLastSeen ? -1 : (a.mLastSeen == b.mLastSeen ? 0 : 1);
+            }
+        });
+        for (Peer peer : peers) {
+            mPeers.put(peer.mAddress, peer);
+        }
+    }
+
+    /**
+     * @return what the peer told us, null if it's unknown or it's been too long
+     */
+    public synchronized Peer get(String address, long now) {
+        Peer peer = mPeers.get(address);
+        if (peer != null && now - peer.mLastSeen > mMaxAge) {
+            remove(address);
+            return null;
+        }
+        return peer;
+    }
+
+    public synchronized void put(Peer peer) {
+        // Moved last, as the most recently seen
+        mPeers.remove(peer.mAddress);
+        mPeers.put(peer.mAddress, peer);
+        SharedPreferences.Editor editor = mPreferences != null ? mPreferences.edit() : null;
+        if (editor != null) {
+            editor.putString(peer.mAddress, encode(peer));
+        }
+        Iterator<Peer> iterator = mPeers.values().iterator();
+        while (mPeers.size() > mMaxPeers && iterator.hasNext()) {
+            Peer evicted = iterator.next();
+            iterator.remove();
+            if (editor != null) {
+                editor.remove(evicted.mAddress);
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    public synchronized void remove(String address) {
+        if (mPeers.remove(address) != null && mPreferences != null) {
+            mPreferences.edit().remove(address).apply();
+        }
+    }
+
+    public synchronized void clear() {
+        mPeers.clear();
+        if (mPreferences != null) {
+            mPreferences.edit().clear().apply();
+        }
+    }
+
+    /**
+     * @return the known peers, most recently seen first
+     */
+    public synchronized List<Peer> getPeers() {
+        List<Peer> peers = new ArrayList<>(mPeers.values());
+        Collections.reverse(peers);
+        return peers;
+    }
+
+    /*
+     * Saved as "mtu,lastSeen,versionLength,version" followed by the description, which can
+     * hold any character
+     */
+
+    static String encode(Peer peer) {
+        return peer.mMtu + "," + peer.mLastSeen + "," + peer.mVersion.length() + ","
+                + peer.mVersion + peer.mDescription;
+    }
+
+    /**
+     * @return null if malformed
+     */
+    static Peer decode(String address, String value) {
+        try {
+            int mtuEnd = value.indexOf(',');
+            int lastSeenEnd = value.indexOf(',', mtuEnd + 1);
+            int versionLengthEnd = value.indexOf(',', lastSeenEnd + 1);
+            if (mtuEnd < 0 || lastSeenEnd < 0 || versionLengthEnd < 0) {
+                return null;
+            }
+            int mtu = Integer.parseInt(value.substring(0, mtuEnd));
+            long lastSeen = Long.parseLong(value.substring(mtuEnd + 1, lastSeenEnd));
+            int versionEnd = versionLengthEnd + 1
+                    + Integer.parseInt(value.substring(lastSeenEnd + 1, versionLengthEnd));
+            if (versionEnd <= versionLengthEnd || versionEnd > value.length()) {
+                return null;
+            }
+            return new Peer(address, value.substring(versionLengthEnd + 1, versionEnd),
+                    value.substring(versionEnd), mtu, lastSeen);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
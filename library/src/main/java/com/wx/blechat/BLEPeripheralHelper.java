@@ -17,16 +17,27 @@ import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.os.Handler;
 import android.os.ParcelUuid;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
 /**
  * This singleton helper class will manage all the Bluetooth LE Peripheral stuff
@@ -50,14 +61,38 @@ public class BLEPeripheralHelper {
     private BluetoothGattServer mGattServer;
     private Context mContext;
     //private BLEAdvertiseCallback mBleAdvCallback;
-    private ArrayList<BLEAdvertiseCallback> mAdvListeners = new ArrayList<>();
-    private ArrayList<BLEPeripheralChatEvents> mChatListeners = new ArrayList<>();
-
-    private ArrayList<BluetoothDevice> mConnectedDevices;
+    private BLEListenerList<BLEAdvertiseCallback> mAdvListeners = new BLEListenerList<>(BLEAdvertiseCallback.class);
+    private BLEListenerList<BLEPeripheralChatEvents> mChatListeners = new BLEListenerList<>(BLEPeripheralChatEvents.class);
+
+    private List<BluetoothDevice> mConnectedDevices;
+    // Created and removed under mLock, looked up without it
+    private final ConcurrentHashMap<BluetoothDevice, DeviceSession> mSessions = new ConcurrentHashMap<>();
+    private BLEFrameCodec.Encoder mFrameEncoder =
+            new BLEFrameCodec.Encoder(BLEChatProfile.DEFAULT_MTU - BLEChatProfile.ATT_HEADER_SIZE);
     private Object mLock = new Object();
-    private Handler mHandler = new Handler();
+    private final Object mNotifyLock = new Object();
+    private volatile BLECallbackDispatcher mDispatcher = BLECallbackDispatcher.mainThread();
 
     private AcceptThread mInsecureAcceptThread;
+    private final BLEBufferPool mBufferPool = new BLEBufferPool();
+    private final BLECompression mCompression = new BLECompression();
+    private volatile int mMaxPreparedWriteSize = BLEPreparedWrites.DEFAULT_MAX_SIZE;
+    /**
+     * Threads shared by the workers of every device, see DeviceSession.mInbound. Created
+     * up front, sessions are built under mLock, and the threads end when idle for a while.
+     */
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "BLEPeripheralWorker-" + mCount.incrementAndGet());
+        }
+    });
+    // Values of the readable characteristics, served to read requests as they are
+    private final BLEReadValues mReadValues = new BLEReadValues();
+    // Characteristics of our service, resolved once it's created
+    private volatile BLEChatCharacteristics mCharacteristics;
 
 
     private static BLEPeripheralHelper instance = new BLEPeripheralHelper();
@@ -111,123 +146,146 @@ public class BLEPeripheralHelper {
         mChatListeners.remove(chatEventListener);
     }
 
-    /**
-     * Events for the advertising phase
+    /*
+     * Events for the advertising phase. Every event has its own typed method, so firing it
+     * costs a call per listener: no boxing, no casts.
      */
-    private enum NotifyAdvAction {
-        NOTIFY_ADV_ACTION_INIT_FAILURE,
-        NOTIFY_ADV_ACTION_INIT_SUCCESS,
-        NOTIFY_ADV_ACTION_CLIENT_CONNECT,
-        NOTIFY_ADV_ACTION_INFO,
-        NOTIFY_ADV_ACTION_CONNECTION_ERROR,
+
+    private void notifyAdvInitSuccess() {
+        for (BLEAdvertiseCallback listener : mAdvListeners.array()) {
+            listener.onInitSuccess();
+        }
     }
 
-    ;
+    private void notifyAdvInitFailure(String message) {
+        for (BLEAdvertiseCallback listener : mAdvListeners.array()) {
+            listener.onInitFailure(message);
+        }
+    }
 
-    /**
+    private void notifyClientConnect(BluetoothDevice device) {
+        for (BLEAdvertiseCallback listener : mAdvListeners.array()) {
+            listener.onClientConnect(device);
+        }
+    }
+
+    private void notifyAdvInfo(String info) {
+        for (BLEAdvertiseCallback listener : mAdvListeners.array()) {
+            listener.onInfo(info);
+        }
+    }
+
+    private void notifyAdvError(String error) {
+        for (BLEAdvertiseCallback listener : mAdvListeners.array()) {
+            listener.onError(error);
+        }
+    }
+
+    /*
      * Events for the chatting phase
      */
-    private enum NotifyChatAction {
-        NOTIFY_CHAT_ACTION_MESSAGE,
-        NOTIFY_CHAT_ACTION_INFO,
-        NOTIFY_CHAT_ACTION_CLIENT_DISCONNECT,
-        NOTIFY_CHAT_ACTION_CONNECTION_ERROR,
-        NOTIFY_CHAT_ACTION_INIT_RFCOMM_SOCKET,
-        NOTIFY_CHAT_ACTION_CONNECT_RFCOMM_SOCKET,
-        NOTIFY_CHAT_ACTION_DATA_RFCOMM_SOCKET,
-        NOTIFY_CHAT_ACTION_BLE_STREAM,
+
+    private void notifyMessage(String msg) {
+        for (BLEPeripheralChatEvents listener : mChatListeners.array()) {
+            listener.onMessage(msg);
+        }
+    }
+
+    private void notifyInfo(String info) {
+        for (BLEPeripheralChatEvents listener : mChatListeners.array()) {
+            listener.onInfo(info);
+        }
+    }
+
+    private void notifyClientDisconnect(BluetoothDevice device) {
+        for (BLEPeripheralChatEvents listener : mChatListeners.array()) {
+            listener.onClientDisconnect(device);
+        }
+    }
+
+    private void notifyConnectionError(String error) {
+        for (BLEPeripheralChatEvents listener : mChatListeners.array()) {
+            listener.onConnectionError(error);
+        }
     }
 
+    private void notifyInitRfcommSocket() {
+        for (BLEPeripheralChatEvents listener : mChatListeners.array()) {
+            listener.onInitRfcommSocket();
+        }
+    }
+
+    private void notifyConnectRfcommSocket() {
+        for (BLEPeripheralChatEvents listener : mChatListeners.array()) {
+            listener.onConnectRfcommSocket();
+        }
+    }
 
     /**
-     * Notifies via events to all registered listeners in the Advertising phase.
-     *
-     * @param action
-     * @param data
+     * Listeners implementing BLEBufferEvents get the buffer itself, the rest a copy of its bytes
      */
-    private void notifyAdvListeners(NotifyAdvAction action, Object data) {
-        for (BLEAdvertiseCallback listener : mAdvListeners) {
-            switch (action) {
-                case NOTIFY_ADV_ACTION_INIT_SUCCESS:
-                    listener.onInitSuccess();
-                    break;
-                case NOTIFY_ADV_ACTION_INIT_FAILURE:
-                    listener.onInitFailure((String) data);
-                    break;
-                case NOTIFY_ADV_ACTION_CLIENT_CONNECT:
-                    listener.onClientConnect((BluetoothDevice) data);
-                    break;
-                case NOTIFY_ADV_ACTION_INFO:
-                    listener.onInfo((String) data);
-                    break;
-                case NOTIFY_ADV_ACTION_CONNECTION_ERROR:
-                    listener.onError((String) data);
-                    break;
+    private void notifyData(BLEBuffer buffer) {
+        // Copied only if a listener needs an array, and then once for all of them
+        byte[] data = null;
+        for (BLEPeripheralChatEvents listener : mChatListeners.array()) {
+            if (listener instanceof BLEBufferEvents) {
+                ((BLEBufferEvents) listener).onData(buffer);
+            } else {
+                if (data == null) {
+                    data = buffer.toByteArray();
+                }
+                listener.onData(data);
             }
         }
     }
 
+    private void notifyDataStream(byte[] data) {
+        for (BLEPeripheralChatEvents listener : mChatListeners.array()) {
+            listener.onDataStream(data);
+        }
+    }
 
     /**
-     * Notifies via events to all registered listeners in the Chatting phase
-     *
-     * @param action
-     * @param data
+     * Only listeners implementing BLEDeliveryEvents are told
      */
-
-    private void notifyChatListeners(NotifyChatAction action, Object data) {
-        for (BLEPeripheralChatEvents listener : mChatListeners) {
-            switch (action) {
-                case NOTIFY_CHAT_ACTION_MESSAGE:
-                    listener.onMessage((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_INFO:
-                    listener.onInfo((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_CLIENT_DISCONNECT:
-                    listener.onClientDisconnect((BluetoothDevice) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_CONNECTION_ERROR:
-                    listener.onConnectionError((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_INIT_RFCOMM_SOCKET:
-                    listener.onInitRfcommSocket();
-                    break;
-                case NOTIFY_CHAT_ACTION_CONNECT_RFCOMM_SOCKET:
-                    listener.onConnectRfcommSocket();
-                    break;
-                case NOTIFY_CHAT_ACTION_DATA_RFCOMM_SOCKET:
-                    listener.onData((byte [])data);
-                    break;
-                case NOTIFY_CHAT_ACTION_BLE_STREAM:
-                    listener.onDataStream((byte [])data);
+    private void notifyDelivered(BluetoothDevice device, int status) {
+        for (BLEPeripheralChatEvents listener : mChatListeners.array()) {
+            if (listener instanceof BLEDeliveryEvents) {
+                ((BLEDeliveryEvents) listener).onDelivered(device, status);
             }
         }
     }
 
+    /**
+     * Sets where the status messages of the advertising phase reach the listeners.
+     * By default they are delivered in the main thread.
+     */
+    public void setCallbackDispatcher(BLECallbackDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
 
     public void init(Context context) {
         if (context == null) {
-            notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INIT_FAILURE, "Context cannot be null!!");
+            notifyAdvInitFailure("Context cannot be null!!");
             return;
         }
         mContext = context;
-        mConnectedDevices = new ArrayList<BluetoothDevice>();
+        mConnectedDevices = new CopyOnWriteArrayList<BluetoothDevice>();
         mBluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
         mBluetoothAdapter = mBluetoothManager.getAdapter();
         if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
             //mBleAdvCallback.onInitFailure("Bluetooth not supported in this device!!");
-            notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INIT_FAILURE, "Bluetooth not supported in this device!!");
+            notifyAdvInitFailure("Bluetooth not supported in this device!!");
             return;
         }
 
         if (!mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             //mBleAdvCallback.onInitFailure("Bluetooth LE is not supported in this devices!!");
-            notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INIT_FAILURE, "Bluetooth LE is not supported in this devices!!");
+            notifyAdvInitFailure("Bluetooth LE is not supported in this devices!!");
             return;
         }
         //mBleAdvCallback.onInitSuccess();
-        notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INIT_SUCCESS, null);
+        notifyAdvInitSuccess();
     }
 
     private BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
@@ -240,15 +298,18 @@ public class BLEPeripheralHelper {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (newState == BluetoothGatt.STATE_CONNECTED) {
                     mConnectedDevices.add(device);
-                    notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_CLIENT_CONNECT, device);
+                    notifyClientConnect(device);
                 } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
                     mConnectedDevices.remove(device);
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CLIENT_DISCONNECT, device);
+                    synchronized (mLock) {
+                        mSessions.remove(device);
+                    }
+                    notifyClientDisconnect(device);
                 }
             } else {
                 String error = "Error:" + status;
-                notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, error);
-                notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_CONNECTION_ERROR, error);
+                notifyConnectionError(error);
+                notifyAdvError(error);
             }
         }
 
@@ -258,21 +319,20 @@ public class BLEPeripheralHelper {
                                                 int offset,
                                                 BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-            Log.i(TAG, "onCharacteristicReadRequest " + characteristic.getUuid().toString());
-            byte [] value;
-            if (BLEChatProfile.CHARACTERISTIC_VERSION_UUID.equals(characteristic.getUuid())) {
-                value = getCharacteristicVersionValue();
-            } else if (BLEChatProfile.CHARACTERISTIC_DESC_UUID.equals(characteristic.getUuid())) {
-                value = getCharacteristicDescValue();
-            } else {
+            Log.d(TAG, "onCharacteristicReadRequest " + characteristic.getUuid().toString() + " offset " + offset);
+            byte[] value = mReadValues.get(characteristic.getUuid());
+            if (value == null) {
                 value = new byte[0];
             }
-
+            // A read response holds MTU - 1 bytes, the Central reads the rest from an offset
+            DeviceSession session = findSession(device);
+            int mtu = session != null ? session.mMtu : BLEChatProfile.DEFAULT_MTU;
+            byte[] part = BLEReadValues.read(value, offset, mtu - 1);
             mGattServer.sendResponse(device,
                     requestId,
-                    BluetoothGatt.GATT_SUCCESS,
+                    part != null ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_INVALID_OFFSET,
                     offset,
-                    value);
+                    part);
         }
 
         @Override
@@ -284,35 +344,80 @@ public class BLEPeripheralHelper {
                                                  int offset,
                                                  byte[] value) {
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
-            Log.i(TAG, "onCharacteristicWriteRequest " + characteristic.getUuid().toString());
-            int gatResult = BluetoothGatt.GATT_SUCCESS;
-            try{
-                if (BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID.equals(characteristic.getUuid())) {
-                    String msg = new String(value, "UTF-8");
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_MESSAGE, msg);
-                    /*for (BluetoothDevice connectedDevice : mConnectedDevices) {
-                        BluetoothGattCharacteristic msgCharacteristic = mGattServer.getService(BLEChatProfile.SERVICE_UUID)
-                                .getCharacteristic(BLEChatProfile.CHARACTERISTIC_DESC_UUID);
-                        msgCharacteristic.setValue(msg.getBytes());
-                        mGattServer.notifyCharacteristicChanged(connectedDevice, msgCharacteristic, false);
-                    }*/
-                }else if(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID.equals(characteristic.getUuid())) {
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_BLE_STREAM, value);
+            int gatResult;
+            if (preparedWrite) {
+                // Part of a long write, handled once the Central executes it
+                DeviceSession session = getSession(device);
+                synchronized (session.mPreparedWrites) {
+                    gatResult = session.mPreparedWrites.prepare(characteristic, offset, value);
+                }
+                if (gatResult != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Prepared write rejected: offset " + offset + ", error " + gatResult);
+                }
+            } else if (offset != 0) {
+                gatResult = BluetoothGatt.GATT_INVALID_OFFSET;
+            } else {
+                // Respond right away, the worker of the device handles the writes in order.
+                // The binder hands us a fresh array, it's ours to keep.
+                DeviceSession session = getSession(device);
+                post(session, characteristic, value);
+                gatResult = BluetoothGatt.GATT_SUCCESS;
+                if (mCharacteristics.kindOf(characteristic) == BLEChatCharacteristics.KIND_VERSION) {
+                    // The Central switches when it gets the response, see applyVersion()
+                    synchronized (mNotifyLock) {
+                        applyVersion(session, characteristic, value);
+                        if (responseNeeded) {
+                            mGattServer.sendResponse(device, requestId, gatResult, offset, value);
+                        }
+                    }
+                    return;
+                }
+            }
+            if (responseNeeded) {
+                mGattServer.sendResponse(device,
+                        requestId,
+                        gatResult,
+                        offset,
+                        value);
+            }
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            super.onExecuteWrite(device, requestId, execute);
+            DeviceSession session = getSession(device);
+            Map<BluetoothGattCharacteristic, byte[]> writes;
+            synchronized (session.mPreparedWrites) {
+                if (!execute) {
+                    session.mPreparedWrites.clear();
                 }
-            }catch (UnsupportedEncodingException ex) {
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, ex.toString());
-                    gatResult = BluetoothGatt.GATT_FAILURE;
-            }finally{
-                if (responseNeeded) {
-                    mGattServer.sendResponse(device,
-                            requestId,
-                            gatResult,
-                            offset,
-                            value);
+                writes = session.mPreparedWrites.take();
+            }
+            // The Central switches when it gets the response, see applyVersion()
+            synchronized (mNotifyLock) {
+                for (Map.Entry<BluetoothGattCharacteristic, byte[]> write : writes.entrySet()) {
+                    applyVersion(session, write.getKey(), write.getValue());
+                    post(session, write.getKey(), write.getValue());
                 }
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
             }
         }
 
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            super.onNotificationSent(device, status);
+            BLEPeripheralHelper.this.onNotificationSent(device, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            super.onMtuChanged(device, mtu);
+            Log.i(TAG, "onMtuChanged " + device.getAddress() + " " + mtu);
+            DeviceSession session = getSession(device);
+            session.mMtu = mtu;
+            session.mMetrics.setMtu(mtu);
+        }
+
         @Override
         public void onDescriptorWriteRequest(BluetoothDevice device,
                                              int requestId, BluetoothGattDescriptor descriptor,
@@ -348,9 +453,9 @@ public class BLEPeripheralHelper {
 
         BluetoothGattCharacteristic versionCharacteristic =
                 new BluetoothGattCharacteristic(BLEChatProfile.CHARACTERISTIC_VERSION_UUID,
-                        //Read-only characteristic
-                        BluetoothGattCharacteristic.PROPERTY_READ,
-                        BluetoothGattCharacteristic.PERMISSION_READ);
+                        //Read-write characteristic, the Central writes back its own version
+                        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                        BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
 
         BluetoothGattCharacteristic descriptionCharacteristic =
                 new BluetoothGattCharacteristic(BLEChatProfile.CHARACTERISTIC_DESC_UUID,
@@ -383,8 +488,21 @@ public class BLEPeripheralHelper {
         service.addCharacteristic(transferCharacteristic);
         service.addCharacteristic(transferBleCharacteristic);
 
+        // Read-only characteristics published by the application
+        mReadValues.put(BLEChatProfile.CHARACTERISTIC_VERSION_UUID, BLEChatProfile.getVersion().getBytes(StandardCharsets.UTF_8));
+        if (mReadValues.get(BLEChatProfile.CHARACTERISTIC_DESC_UUID) == null) {
+            mReadValues.put(BLEChatProfile.CHARACTERISTIC_DESC_UUID, BLEChatProfile.getDescription().getBytes(StandardCharsets.UTF_8));
+        }
+        for (UUID uuid : mReadValues.getUuids()) {
+            if (service.getCharacteristic(uuid) == null) {
+                service.addCharacteristic(new BluetoothGattCharacteristic(uuid,
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ));
+            }
+        }
 
         mGattServer.addService(service);
+        mCharacteristics = BLEChatCharacteristics.resolve(service);
     }
 
     /**
@@ -396,9 +514,46 @@ public class BLEPeripheralHelper {
             mInsecureAcceptThread.start();
         }
         sendTransferReady();
-        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_INIT_RFCOMM_SOCKET, null);
+        notifyInitRfcommSocket();
     }
 
+    /**
+     * Publishes the value of a read-only characteristic, such as a status blob. Centrals can
+     * read values of any length, in as many requests as the MTU requires. New characteristics
+     * are added to the service by the next startAdvertising(), known ones are updated right away.
+     * The description characteristic can be set too, to replace the default one.
+     *
+     * @throws IllegalArgumentException for the other characteristics of the chat service
+     */
+    public void setReadOnlyValue(UUID uuid, byte[] value) {
+        if (BLEChatProfile.CHARACTERISTIC_VERSION_UUID.equals(uuid)
+                || BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID.equals(uuid)
+                || BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID.equals(uuid)
+                || BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID.equals(uuid)) {
+            throw new IllegalArgumentException("Not a read-only characteristic: " + uuid);
+        }
+        mReadValues.put(uuid, value);
+    }
+
+    /**
+     * Max size of a long write, {@link BLEPreparedWrites#DEFAULT_MAX_SIZE} by default. Longer
+     * ones are refused. It applies to the devices connecting from now on.
+     */
+    public void setMaxPreparedWriteSize(int size) {
+        mMaxPreparedWriteSize = size;
+    }
+
+    /**
+     * Enables the framing mode of the RFCOMM socket, see {@link BLEStreamFramer}: onData()
+     * gets whole messages instead of whatever each read returns. The message type isn't
+     * reported. It applies from the next initRfcommService().
+     */
+    public void setRfcommFraming(boolean enabled) {
+        mRfcommFraming = enabled;
+    }
+
+    private volatile boolean mRfcommFraming = false;
+
     /**
      * Stops the RFCOMM Socket
      */
@@ -492,56 +647,440 @@ public class BLEPeripheralHelper {
      * Helper function to set the Status message
      */
     private void postStatusMessage(final String message) {
-        mHandler.post(new Runnable() {
+        mDispatcher.execute(new Runnable() {
             @Override
             public void run() {
-                notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INFO, message);
+                notifyAdvInfo(message);
             }
         });
     }
 
     /**
-     * Returns an array of bytes representing the value of the Version characteristic
-     * @return
+     * Sends a message to every connected device through the message characteristic.
+     * The message is queued for every device and compressed at most once, when it's sent to
+     * the first device that decompresses, see {@link BLEDeliveryEvents}. It must fit in a notification:
+     * devices whose MTU is too small get SENT_FAILED, use sendStream() for long messages.
      */
-    private byte[] getCharacteristicVersionValue() {
-        synchronized (mLock) {
-            return BLEChatProfile.getVersion().getBytes();
+    public void send(String msg) {
+        BluetoothGattCharacteristic msgCharacteristic = mCharacteristics.mMessage;
+        OutboundMessage message = new OutboundMessage(msg.getBytes(StandardCharsets.UTF_8));
+        for (BluetoothDevice device : mConnectedDevices) {
+            enqueueNotification(getSession(device), new Notification(msgCharacteristic, message));
         }
     }
 
     /**
-     * Returns an array of bytes representing the value of the Description characteristic
-     * @return
+     * Sends a block of random data
      */
-    private byte[] getCharacteristicDescValue() {
+    public synchronized void sendStream(){
+        notifyInfo("Not tested yet!");
+        byte[] randomBytes = new byte[512];
+        (new Random()).nextBytes(randomBytes);
+        sendStream(randomBytes);
+    }
+
+    /**
+     * Sends a message of any size to every connected device through the BLE transfer
+     * characteristic. The message is split in fragments that fit in the MTU of each device,
+     * encoding it only once for all the devices sharing the same MTU and compression.
+     *
+     * @param data
+     */
+    public synchronized void sendStream(byte[] data) {
+        BluetoothGattCharacteristic transferCharacteristic = mCharacteristics.mBleTransfer;
+        Map<Integer, List<byte[]>> fragmentsBySize = new HashMap<>();
+        byte[] compressed = null;
+        for (BluetoothDevice device : mConnectedDevices) {
+            DeviceSession session = getSession(device);
+            int fragmentSize = session.mMtu - BLEChatProfile.ATT_HEADER_SIZE;
+            // Fragment sizes are far below 2^30, the low bit tells whether it's compressed
+            int key = (fragmentSize << 1) | (session.mCompressOutbound ? 1 : 0);
+            List<byte[]> fragments = fragmentsBySize.get(key);
+            if (fragments == null) {
+                byte[] payload = data;
+                if (session.mCompressOutbound) {
+                    if (compressed == null) {
+                        compressed = mCompression.encode(data);
+                    }
+                    payload = compressed;
+                }
+                fragments = new ArrayList<>();
+                mFrameEncoder.setFragmentSize(fragmentSize);
+                mFrameEncoder.begin(payload, session.mCompressOutbound);
+                while (mFrameEncoder.hasNext()) {
+                    fragments.add(mFrameEncoder.next());
+                }
+                fragmentsBySize.put(key, fragments);
+            }
+            for (int i = 0; i < fragments.size(); i++) {
+                boolean last = i == fragments.size() - 1;
+                enqueueNotification(session, new Notification(transferCharacteristic, fragments.get(i), last, last));
+            }
+        }
+    }
+
+    /**
+     * @return the transfer metrics of the connection with the given device, null if it isn't
+     * connected
+     */
+    public BLEMetrics.Snapshot getMetrics(BluetoothDevice device) {
+        DeviceSession session = findSession(device);
+        return session != null ? session.mMetrics.snapshot() : null;
+    }
+
+    /**
+     * Returns the MTU negotiated with the given device, the default one if it isn't connected
+     */
+    public int getMtu(BluetoothDevice device) {
+        DeviceSession session = findSession(device);
+        return session != null ? session.mMtu : BLEChatProfile.DEFAULT_MTU;
+    }
+
+    /**
+     * Grants flow control credits to a device streaming through the BLE transfer characteristic
+     */
+    private void sendCredits(DeviceSession session, int credits) {
+        // Not queued with the messages: a failed fragment drops the rest of its message,
+        // the credits must survive it
+        synchronized (mNotifyLock) {
+            session.mPendingCredits += credits;
+        }
+        dispatchNotifications(session);
+    }
+
+    /**
+     * Applies a version write of the Central to what we notify. Call it under mNotifyLock
+     * and send the response before releasing it: the Central decompresses our messages once
+     * it has the response, so those notified before must be raw and those after compressed.
+     */
+    private void applyVersion(DeviceSession session, BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (mCharacteristics.kindOf(characteristic) == BLEChatCharacteristics.KIND_VERSION) {
+            session.mCompressOutbound = usesDeflate(value);
+        }
+    }
+
+    /**
+     * @return true if both the Central version and ours have the deflate feature
+     */
+    private static boolean usesDeflate(byte[] version) {
+        return BLEChatProfile.hasFeature(new String(version, StandardCharsets.UTF_8), BLEChatProfile.FEATURE_DEFLATE)
+                && BLEChatProfile.hasFeature(BLEChatProfile.getVersion(), BLEChatProfile.FEATURE_DEFLATE);
+    }
+
+    /**
+     * Queues a write of the Central for the worker of its device
+     */
+    private void post(final DeviceSession session, final BluetoothGattCharacteristic characteristic, final byte[] value) {
+        session.mInbound.execute(new Runnable() {
+            @Override
+            public void run() {
+                onWrite(session, characteristic, value);
+            }
+        });
+    }
+
+    /**
+     * Handles a write of the Central, whole or assembled from prepared writes, in the worker
+     * of its device. Errors are reported with onConnectionError(), the write has already
+     * been acknowledged.
+     */
+    private void onWrite(DeviceSession session, BluetoothGattCharacteristic characteristic, byte[] value) {
+        int kind = mCharacteristics.kindOf(characteristic);
+        try{
+            if (kind == BLEChatCharacteristics.KIND_BLE_TRANSFER) {
+                // Stream fragments, the hot path: keep it short
+                session.mMetrics.add(BLEMetrics.BYTES_RECEIVED, value.length);
+                session.mFrameDecoder.decode(value);
+                int credits = session.mFlowReceiver.onConsumed();
+                if (credits > 0) {
+                    sendCredits(session, credits);
+                }
+            } else if (kind == BLEChatCharacteristics.KIND_MESSAGE) {
+                Log.i(TAG, "onCharacteristicWriteRequest " + characteristic.getUuid().toString());
+                session.mMetrics.increment(BLEMetrics.MESSAGES_RECEIVED);
+                session.mMetrics.add(BLEMetrics.BYTES_RECEIVED, value.length);
+                byte[] data = value;
+                if (session.mDecompressInbound) {
+                    data = mCompression.decode(value);
+                }
+                String msg = new String(data, "UTF-8");
+                notifyMessage(msg);
+                /*for (BluetoothDevice connectedDevice : mConnectedDevices) {
+                    BluetoothGattCharacteristic msgCharacteristic = mGattServer.getService(BLEChatProfile.SERVICE_UUID)
+                            .getCharacteristic(BLEChatProfile.CHARACTERISTIC_DESC_UUID);
+                    msgCharacteristic.setValue(msg.getBytes());
+                    mGattServer.notifyCharacteristicChanged(connectedDevice, msgCharacteristic, false);
+                }*/
+            }else if(kind == BLEChatCharacteristics.KIND_VERSION) {
+                // The Central tells which of our features it's going to use. What it wrote
+                // before this, still queued ahead of it, wasn't compressed
+                Log.i(TAG, "Central version: " + new String(value, "UTF-8"));
+                session.mDecompressInbound = usesDeflate(value);
+            }
+        }catch (UnsupportedEncodingException ex) {
+                notifyConnectionError(ex.toString());
+        }catch (DataFormatException ex) {
+                notifyConnectionError("Malformed message: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the session of a device, null if it has none. Doesn't lock.
+     */
+    private DeviceSession findSession(BluetoothDevice device) {
+        return mSessions.get(device);
+    }
+
+    private DeviceSession getSession(BluetoothDevice device) {
         synchronized (mLock) {
-            return BLEChatProfile.getDescription().getBytes();
+            DeviceSession session = mSessions.get(device);
+            if (session == null) {
+                session = new DeviceSession(device);
+                mSessions.put(device, session);
+            }
+            return session;
         }
     }
 
-    public void send(String msg) {
-        for (BluetoothDevice device : mConnectedDevices) {
-            BluetoothGattCharacteristic msgCharacteristic = mGattServer.getService(BLEChatProfile.SERVICE_UUID)
-                    .getCharacteristic(BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID);
-            msgCharacteristic.setValue(msg);
-            mGattServer.notifyCharacteristicChanged(device, msgCharacteristic, false);
+    /**
+     * Queues a notification for a device and sends it if the device isn't busy
+     */
+    private void enqueueNotification(DeviceSession session, Notification notification) {
+        synchronized (mNotifyLock) {
+            session.mOutbound.add(notification);
         }
+        dispatchNotifications(session);
     }
 
     /**
-     * Sends a block of random data
+     * Sends the next queued notification of a device, unless one is already waiting for
+     * onNotificationSent(). All devices share the characteristics, so their value is set and
+     * notified under mNotifyLock.
      */
-    public synchronized void sendStream(){
-        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_INFO, "Not tested yet!");
-        byte[] randomBytes = new byte[512];
-        (new Random()).nextBytes(randomBytes);
+    private void dispatchNotifications(DeviceSession session) {
+        boolean failed = false;
+        synchronized (mNotifyLock) {
+            while (session.mInFlight == null) {
+                Notification notification;
+                if (session.mPendingCredits > 0) {
+                    // Credits go first, the Central may be stalled waiting for them
+                    int credits = Math.min(session.mPendingCredits, 0xFFFF);
+                    session.mPendingCredits -= credits;
+                    notification = new Notification(mCharacteristics.mBleTransfer, credits);
+                } else {
+                    notification = session.mOutbound.poll();
+                }
+                if (notification == null) {
+                    break;
+                }
+                if (notification.mMessage != null) {
+                    // Encoded as the device reads it right now, see applyVersion()
+                    notification.mValue = notification.mMessage.encode(session.mCompressOutbound);
+                    if (notification.mValue.length > session.mMtu - BLEChatProfile.ATT_HEADER_SIZE) {
+                        // The stack would truncate it, and a truncated compressed payload
+                        // can't even be inflated
+                        Log.w(TAG, "Message too long for the MTU of " + session.mDevice.getAddress()
+                                + ": " + session.mMtu);
+                        session.mMetrics.increment(BLEMetrics.WRITE_FAILURES);
+                        failed |= dropMessage(session, notification);
+                        continue;
+                    }
+                }
+                notification.mCharacteristic.setValue(notification.mValue);
+                notification.mSentAt = System.nanoTime();
+                if (mGattServer.notifyCharacteristicChanged(session.mDevice, notification.mCharacteristic, false)) {
+                    session.mInFlight = notification;
+                } else {
+                    Log.w(TAG, "Couldn't notify " + session.mDevice.getAddress());
+                    session.mMetrics.increment(BLEMetrics.GATT_BUSY);
+                    session.mMetrics.increment(BLEMetrics.WRITE_FAILURES);
+                    if (notification.mCredits > 0) {
+                        // Granted again with the next notification
+                        session.mPendingCredits += notification.mCredits;
+                        break;
+                    }
+                    failed |= dropMessage(session, notification);
+                }
+            }
+        }
+        if (failed) {
+            notifyDelivered(session.mDevice, BLEChatEvents.SENT_FAILED);
+        }
+    }
 
-        for (BluetoothDevice device : mConnectedDevices) {
-            BluetoothGattCharacteristic transferCharacteristic = mGattServer.getService(BLEChatProfile.SERVICE_UUID)
-                    .getCharacteristic(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID);
-            transferCharacteristic.setValue(randomBytes);
-            mGattServer.notifyCharacteristicChanged(device, transferCharacteristic, false);
+    /**
+     * Discards the notifications left of the message the failed one belongs to
+     *
+     * @return true if the failure has to be reported
+     */
+    private boolean dropMessage(DeviceSession session, Notification failed) {
+        boolean report = failed.mReport;
+        Notification notification = failed;
+        while (!notification.mEndOfMessage && (notification = session.mOutbound.poll()) != null) {
+            report |= notification.mReport;
+        }
+        return report;
+    }
+
+    private void onNotificationSent(BluetoothDevice device, int status) {
+        DeviceSession session = findSession(device);
+        if (session == null) {
+            return;
+        }
+        boolean report;
+        synchronized (mNotifyLock) {
+            Notification sent = session.mInFlight;
+            session.mInFlight = null;
+            if (sent == null) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                report = sent.mReport;
+            } else if (sent.mCredits > 0) {
+                session.mPendingCredits += sent.mCredits;
+                report = false;
+            } else {
+                report = dropMessage(session, sent);
+            }
+            BLEMetrics metrics = session.mMetrics;
+            metrics.recordWriteLatency((System.nanoTime() - sent.mSentAt) / 1000);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                metrics.add(BLEMetrics.BYTES_SENT, sent.mValue.length);
+                if (sent.mReport) {
+                    metrics.increment(BLEMetrics.MESSAGES_SENT);
+                }
+            } else {
+                metrics.increment(BLEMetrics.WRITE_FAILURES);
+            }
+        }
+        if (report) {
+            notifyDelivered(device, status == BluetoothGatt.GATT_SUCCESS ? BLEChatEvents.SENT_SUCCEED : BLEChatEvents.SENT_FAILED);
+        }
+        dispatchNotifications(session);
+    }
+
+    /**
+     * A message of the message characteristic, shared by its notifications to every device.
+     * Guarded by mNotifyLock.
+     */
+    private class OutboundMessage {
+        final byte[] mData;
+        byte[] mCompressed;
+
+        OutboundMessage(byte[] data) {
+            mData = data;
+        }
+
+        byte[] encode(boolean compressed) {
+            if (!compressed) {
+                return mData;
+            }
+            if (mCompressed == null) {
+                mCompressed = mCompression.encode(mData);
+            }
+            return mCompressed;
+        }
+    }
+
+    /**
+     * A notification waiting to be sent to a device
+     */
+    private static class Notification {
+        final BluetoothGattCharacteristic mCharacteristic;
+        // Set when it's sent for messages, guarded by mNotifyLock
+        byte[] mValue;
+        // The message it carries, null for stream fragments and credit frames
+        final OutboundMessage mMessage;
+        // Last notification of a message, a failure drops the queued notifications up to here
+        final boolean mEndOfMessage;
+        // Report the delivery to the BLEDeliveryEvents listeners once sent
+        final boolean mReport;
+        // Credits granted by a credit frame, 0 for the fragments of messages
+        final int mCredits;
+        // When it was handed to the stack, guarded by mNotifyLock
+        long mSentAt;
+
+        Notification(BluetoothGattCharacteristic characteristic, byte[] value, boolean endOfMessage, boolean report) {
+            mCharacteristic = characteristic;
+            mValue = value;
+            mEndOfMessage = endOfMessage;
+            mReport = report;
+            mCredits = 0;
+            mMessage = null;
+        }
+
+        /**
+         * A message, compressed or not depending on the device when it's sent
+         */
+        Notification(BluetoothGattCharacteristic characteristic, OutboundMessage message) {
+            mCharacteristic = characteristic;
+            mEndOfMessage = true;
+            mReport = true;
+            mCredits = 0;
+            mMessage = message;
+        }
+
+        /**
+         * A credit frame, see BLEFlowControl
+         */
+        Notification(BluetoothGattCharacteristic characteristic, int credits) {
+            mCharacteristic = characteristic;
+            mValue = BLEFrameCodec.encodeCredit(credits);
+            mEndOfMessage = true;
+            mReport = false;
+            mCredits = credits;
+            mMessage = null;
+        }
+    }
+
+    /**
+     * Per device state: BLE transfer characteristic and outbound notifications
+     */
+    private class DeviceSession {
+        final BluetoothDevice mDevice;
+        volatile int mMtu = BLEChatProfile.DEFAULT_MTU;
+        // The Central announced it uses compression, see BLECompression. Set on the binder
+        // thread with the response to its version write, see applyVersion()
+        volatile boolean mCompressOutbound = false;
+        // Set by the worker in order with the writes, messages before the version are raw.
+        // Streams tell it by themselves.
+        volatile boolean mDecompressInbound = false;
+        final BLEMetrics mMetrics = new BLEMetrics();
+        final BLEFlowControl.Receiver mFlowReceiver = new BLEFlowControl.Receiver(BLEChatProfile.STREAM_CREDIT_BATCH);
+        final BLEFrameCodec.Decoder mFrameDecoder;
+        // Long writes waiting for their execute request, guarded by itself
+        final BLEPreparedWrites<BluetoothGattCharacteristic> mPreparedWrites =
+                new BLEPreparedWrites<>(mMaxPreparedWriteSize);
+        // Handles the writes of the device off the binder thread, one at a time in order
+        final BLESerialExecutor mInbound = new BLESerialExecutor(mWorkers);
+        // Guarded by mNotifyLock
+        final ArrayDeque<Notification> mOutbound = new ArrayDeque<>();
+        // Credits to grant, sent ahead of the queued notifications. Guarded by mNotifyLock
+        int mPendingCredits;
+        Notification mInFlight;
+
+        DeviceSession(final BluetoothDevice device) {
+            mDevice = device;
+            mFrameDecoder = new BLEFrameCodec.Decoder(new BLEFrameCodec.Decoder.Listener() {
+                @Override
+                public void onMessage(byte[] buffer, int offset, int length) {
+                    mMetrics.increment(BLEMetrics.MESSAGES_RECEIVED);
+                    if (!mFrameDecoder.isCompressed()) {
+                        notifyDataStream(BLEFrameCodec.copyOf(buffer, offset, length));
+                        return;
+                    }
+                    try {
+                        notifyDataStream(mCompression.decode(buffer, offset, length));
+                    } catch (DataFormatException e) {
+                        onError("Malformed message: " + e.getMessage());
+                    }
+                }
+
+                @Override
+                public void onError(String error) {
+                    Log.w(TAG, "BLE transfer from " + device.getAddress() + ": " + error);
+                }
+            });
         }
     }
 
@@ -552,12 +1091,11 @@ public class BLEPeripheralHelper {
      * identify this devices so he can filter and connect to it.
      */
     private void sendTransferReady(){
+        BluetoothGattCharacteristic transferCharacteristic = mCharacteristics.mRfcommTransfer;
+        String macAddress = android.provider.Settings.Secure.getString(mContext.getContentResolver(), "bluetooth_address");
+        byte[] value = macAddress.getBytes(StandardCharsets.UTF_8);
         for (BluetoothDevice device : mConnectedDevices) {
-            BluetoothGattCharacteristic transferCharacteristic = mGattServer.getService(BLEChatProfile.SERVICE_UUID)
-                    .getCharacteristic(BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID);
-            String macAddress = android.provider.Settings.Secure.getString(mContext.getContentResolver(), "bluetooth_address");
-            transferCharacteristic.setValue(macAddress);
-            mGattServer.notifyCharacteristicChanged(device, transferCharacteristic, false);
+            enqueueNotification(getSession(device), new Notification(transferCharacteristic, value, true, false));
         }
     }
 
@@ -576,6 +1114,29 @@ public class BLEPeripheralHelper {
         private final BluetoothServerSocket mmServerSocket;
         private String mSocketType;
         boolean mEnd = false;
+        // The accepted connection, read by this thread only
+        private BluetoothSocket mmSocket;
+        private final BLEStreamFramer.Decoder mmDecoder = mRfcommFraming
+                ? new BLEStreamFramer.Decoder(new BLEStreamFramer.Decoder.Listener() {
+                    @Override
+                    public void onMessage(int type, BLEBuffer message) {
+                        notifyData(message);
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        // Out of sync, there is no telling where the next message starts.
+                        // Drop the connection so the peer sees it right away.
+                        mEnd = true;
+                        try {
+                            mmSocket.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "close() of RFCOMM socket failed", e);
+                        }
+                        notifyConnectionError("RFCOMM framing error: " + error);
+                    }
+                })
+                : null;
 
         public AcceptThread(boolean secure) {
             BluetoothServerSocket tmp = null;
@@ -591,7 +1152,7 @@ public class BLEPeripheralHelper {
                             NAME_INSECURE, MY_UUID_INSECURE);
                 }
             } catch (IOException e) {
-                notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Socket Type: " + mSocketType + "listen() failed");
+                notifyConnectionError("Socket Type: " + mSocketType + "listen() failed");
             }
             mmServerSocket = tmp;
         }
@@ -606,18 +1167,30 @@ public class BLEPeripheralHelper {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
                 socket = mmServerSocket.accept();
-                notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECT_RFCOMM_SOCKET, null);
+                mmSocket = socket;
+                notifyConnectRfcommSocket();
+                InputStream is = socket.getInputStream();
                 int bytesRead = 0;
                 do
                 {
-                    InputStream is = socket.getInputStream();
-                    byte[] buffer = new byte[1024];
-                    bytesRead = is.read(buffer);
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_DATA_RFCOMM_SOCKET, buffer);
-                }while(bytesRead != 0 && !mEnd);
+                    BLEBuffer buffer = mBufferPool.acquire();
+                    try {
+                        bytesRead = is.read(buffer.array());
+                        if (bytesRead > 0) {
+                            buffer.setSlice(0, bytesRead);
+                            if (mmDecoder != null) {
+                                mmDecoder.decode(buffer);
+                            } else {
+                                notifyData(buffer);
+                            }
+                        }
+                    } finally {
+                        buffer.release();
+                    }
+                }while(bytesRead >= 0 && !mEnd);
 
             } catch (IOException e) {
-                notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Socket Type: " + mSocketType + "accept() failed");
+                notifyConnectionError("Socket Type: " + mSocketType + "accept() failed");
             }
         }
 
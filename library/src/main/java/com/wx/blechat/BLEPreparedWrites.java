@@ -0,0 +1,93 @@
+package com.wx.blechat;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepared writes of a device, waiting for their execute request.
+ * <p>
+ * A Central writes a value longer than its MTU allows as a series of prepare requests, each
+ * with the offset of its part, then executes or cancels them all at once. The parts of every
+ * characteristic are assembled here as they arrive: each one must start within what has been
+ * received so far, and all together must fit in maxSize bytes. Characteristics come out in the
+ * order they were first written.
+ * <p>
+ * This class is pure Java, to be tested on the JVM. Not thread safe.
+ */
+class BLEPreparedWrites<K> {
+
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+    private final int mMaxSize;
+    private final LinkedHashMap<K, Assembly> mWrites = new LinkedHashMap<>();
+    private int mSize = 0;
+
+    private static class Assembly {
+        byte[] mValue = new byte[0];
+        int mLength = 0;
+    }
+
+    BLEPreparedWrites(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Adds a part of the value of a characteristic
+     *
+     * @return BLEGattConstants.GATT_SUCCESS, GATT_INVALID_OFFSET if it leaves a gap, or
+     * GATT_INVALID_ATTR_LEN if the writes would go over maxSize
+     */
+    int prepare(K characteristic, int offset, byte[] value) {
+        Assembly assembly = mWrites.get(characteristic);
+        int length = assembly != null ? assembly.mLength : 0;
+        if (offset < 0 || offset > length) {
+            return BLEGattConstants.GATT_INVALID_OFFSET;
+        }
+        int end = offset + value.length;
+        int growth = Math.max(end - length, 0);
+        if (mSize + growth > mMaxSize) {
+            return BLEGattConstants.GATT_INVALID_ATTR_LEN;
+        }
+        if (assembly == null) {
+            assembly = new Assembly();
+            mWrites.put(characteristic, assembly);
+        }
+        if (end > assembly.mValue.length) {
+            assembly.mValue = Arrays.copyOf(assembly.mValue, Math.min(Math.max(end, assembly.mValue.length * 2), mMaxSize));
+        }
+        System.arraycopy(value, 0, assembly.mValue, offset, value.length);
+        assembly.mLength += growth;
+        mSize += growth;
+        return BLEGattConstants.GATT_SUCCESS;
+    }
+
+    /**
+     * @return the assembled values, and starts over
+     */
+    Map<K, byte[]> take() {
+        LinkedHashMap<K, byte[]> values = new LinkedHashMap<>();
+        for (Map.Entry<K, Assembly> entry : mWrites.entrySet()) {
+            Assembly assembly = entry.getValue();
+            values.put(entry.getKey(), assembly.mLength == assembly.mValue.length
+                    ? assembly.mValue : Arrays.copyOf(assembly.mValue, assembly.mLength));
+        }
+        clear();
+        return values;
+    }
+
+    /**
+     * Discards the writes
+     */
+    void clear() {
+        mWrites.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return the bytes prepared so far
+     */
+    int size() {
+        return mSize;
+    }
+}
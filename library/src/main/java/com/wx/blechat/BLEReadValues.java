@@ -0,0 +1,60 @@
+package com.wx.blechat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Values of the read-only characteristics a Peripheral publishes, keyed by UUID.
+ * <p>
+ * Values are copied once when published and never change afterwards, so read requests are
+ * served without locking nor encoding anything. A value longer than the MTU allows is read
+ * by the Central in several requests, each one from an offset: {@link #read} returns the part
+ * from there on.
+ * <p>
+ * This class is pure Java, to be tested on the JVM.
+ */
+public class BLEReadValues {
+
+    private final ConcurrentHashMap<UUID, byte[]> mValues = new ConcurrentHashMap<>();
+
+    /**
+     * Publishes the value of a characteristic, replacing the previous one
+     */
+    public void put(UUID uuid, byte[] value) {
+        mValues.put(uuid, Arrays.copyOf(value, value.length));
+    }
+
+    /**
+     * @return the value, null if none is published. Don't modify it.
+     */
+    public byte[] get(UUID uuid) {
+        return mValues.get(uuid);
+    }
+
+    public boolean remove(UUID uuid) {
+        return mValues.remove(uuid) != null;
+    }
+
+    public List<UUID> getUuids() {
+        return new ArrayList<>(mValues.keySet());
+    }
+
+    /**
+     * @param maxLength Max size of a read response, MTU - 1
+     * @return the part of the value from offset on, up to maxLength bytes. Null if the
+     * offset is past the end of the value.
+     */
+    public static byte[] read(byte[] value, int offset, int maxLength) {
+        if (offset < 0 || offset > value.length) {
+            return null;
+        }
+        int length = Math.min(value.length - offset, maxLength);
+        if (offset == 0 && length == value.length) {
+            return value;
+        }
+        return Arrays.copyOfRange(value, offset, offset + length);
+    }
+}
@@ -0,0 +1,107 @@
+package com.wx.blechat;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * {@link BLETransport} over a classic Bluetooth RFCOMM socket, through a
+ * {@link BluetoothChatService} of its own.
+ * <p>
+ * The socket is a byte stream, so the service runs in framing mode, see
+ * {@link BLEStreamFramer}. Events come from the Looper given to the constructor.
+ */
+public class BLERfcommTransport implements BLETransport {
+
+    private final BluetoothDevice mDevice;
+    private final boolean mSecure;
+    private final BluetoothChatService mService;
+    private volatile Listener mListener;
+    private volatile boolean mConnected = false;
+
+    public BLERfcommTransport(Context context, Looper looper, BluetoothDevice device, boolean secure) {
+        mDevice = device;
+        mSecure = secure;
+        mService = new BluetoothChatService(context, new Handler(looper, mCallback));
+        mService.setFraming(true);
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void connect() {
+        mService.connect(mDevice, mSecure);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Doesn't block. The completion is called from the writer thread, or right away if the
+     * write queue is full.
+     */
+    @Override
+    public void send(byte[] data, Completion completion) {
+        if (!mService.write(BLEStreamFramer.TYPE_DATA, data, completion) && completion != null) {
+            completion.onComplete(false);
+        }
+    }
+
+    /**
+     * @return the size of a socket read
+     */
+    @Override
+    public int getMtu() {
+        return BLEBufferPool.DEFAULT_BUFFER_SIZE;
+    }
+
+    @Override
+    public void close() {
+        mService.stop();
+    }
+
+    private final Handler.Callback mCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            Listener listener = mListener;
+            switch (msg.what) {
+                case Constants.MESSAGE_STATE_CHANGE:
+                    boolean connected = msg.arg1 == BluetoothChatService.STATE_CONNECTED;
+                    if (connected == mConnected) {
+                        break;
+                    }
+                    mConnected = connected;
+                    if (listener != null) {
+                        if (connected) {
+                            listener.onConnected(BLERfcommTransport.this);
+                        } else {
+                            listener.onDisconnected(BLERfcommTransport.this);
+                        }
+                    }
+                    break;
+                case Constants.MESSAGE_FRAME:
+                    if (listener != null) {
+                        listener.onReceive(BLERfcommTransport.this, ((BLEBuffer) msg.obj).toByteArray());
+                    }
+                    break;
+                case Constants.MESSAGE_TOAST:
+                    if (listener != null) {
+                        listener.onError(BLERfcommTransport.this, msg.getData().getString(Constants.TOAST));
+                    }
+                    break;
+            }
+            return true;
+        }
+    };
+}
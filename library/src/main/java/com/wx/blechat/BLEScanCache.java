@@ -0,0 +1,161 @@
+package com.wx.blechat;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded table of the devices seen while scanning, keyed by address.
+ * <p>
+ * Every advertisement updates the entry of its device: EWMA smoothed RSSI, first/last seen
+ * time and count. Devices not seen for expiryMillis are evicted, and when the table is full
+ * the least recently seen device makes room for the new one.
+ * <p>
+ * update() tells whether the change is worth reporting (new device or a significant RSSI
+ * change), so the caller can coalesce the reports. Times are passed in by the caller.
+ */
+public class BLEScanCache {
+
+    public static final int DEFAULT_MAX_DEVICES = 128;
+    public static final long DEFAULT_EXPIRY = 10000;
+    public static final float DEFAULT_ALPHA = 0.25f;
+    /**
+     * Smoothed RSSI changes smaller than this (in dBm) are not worth a report
+     */
+    public static final float RSSI_CHANGE_THRESHOLD = 2f;
+
+    public static final int UNCHANGED = 0;
+    public static final int CHANGED = 1;
+    public static final int NEW_DEVICE = 2;
+
+    private final int mMaxDevices;
+    private final long mExpiry;
+    private final float mAlpha;
+    private final LinkedHashMap<String, DeviceEntry> mEntries;
+
+    private static class DeviceEntry {
+        BluetoothDevice mDevice;
+        int mRssi;
+        float mSmoothedRssi;
+        float mReportedRssi;
+        long mFirstSeen;
+        long mLastSeen;
+        int mCount;
+    }
+
+    public BLEScanCache() {
+        this(DEFAULT_MAX_DEVICES, DEFAULT_EXPIRY, DEFAULT_ALPHA);
+    }
+
+    /**
+     * @param maxDevices Max number of devices kept
+     * @param expiry     Millis after which a device not seen again is evicted
+     * @param alpha      Weight of every new RSSI sample in the moving average (0..1]
+     */
+    public BLEScanCache(final int maxDevices, long expiry, float alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Invalid alpha: " + alpha);
+        }
+        mMaxDevices = maxDevices;
+        mExpiry = expiry;
+        mAlpha = alpha;
+        // Access ordered, so the eldest entry is the least recently seen
+        mEntries = new LinkedHashMap<String, DeviceEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DeviceEntry> eldest) {
+                return size() > maxDevices;
+            }
+        };
+    }
+
+    /**
+     * Records an advertisement
+     *
+     * @return UNCHANGED, CHANGED or NEW_DEVICE
+     */
+    public synchronized int update(BluetoothDevice device, String address, int rssi, long now) {
+        DeviceEntry entry = mEntries.get(address);
+        if (entry == null) {
+            entry = new DeviceEntry();
+            entry.mDevice = device;
+            entry.mRssi = rssi;
+            entry.mSmoothedRssi = rssi;
+            entry.mReportedRssi = rssi;
+            entry.mFirstSeen = now;
+            entry.mLastSeen = now;
+            entry.mCount = 1;
+            mEntries.put(address, entry);
+            return NEW_DEVICE;
+        }
+        entry.mDevice = device;
+        entry.mRssi = rssi;
+        entry.mSmoothedRssi += mAlpha * (rssi - entry.mSmoothedRssi);
+        entry.mLastSeen = now;
+        entry.mCount++;
+        if (Math.abs(entry.mSmoothedRssi - entry.mReportedRssi) >= RSSI_CHANGE_THRESHOLD) {
+            entry.mReportedRssi = entry.mSmoothedRssi;
+            return CHANGED;
+        }
+        return UNCHANGED;
+    }
+
+    /**
+     * Removes the devices not seen for longer than the expiry time
+     *
+     * @return true if any device was removed
+     */
+    public synchronized boolean evictExpired(long now) {
+        return evictExpired(now, mExpiry);
+    }
+
+    /**
+     * Removes the devices not seen for longer than the given time, e.g. when the scanner is
+     * duty cycled and devices can't be seen more often than once per cycle
+     *
+     * @return true if any device was removed
+     */
+    public synchronized boolean evictExpired(long now, long expiry) {
+        boolean evicted = false;
+        Iterator<DeviceEntry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().mLastSeen > expiry) {
+                iterator.remove();
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return a snapshot of the devices, most recently seen last
+     */
+    public synchronized List<BLEScanRecord> snapshot() {
+        List<BLEScanRecord> records = new ArrayList<>(mEntries.size());
+        for (Map.Entry<String, DeviceEntry> mapEntry : mEntries.entrySet()) {
+            DeviceEntry entry = mapEntry.getValue();
+            records.add(new BLEScanRecord(entry.mDevice, mapEntry.getKey(), entry.mRssi,
+                    entry.mSmoothedRssi, entry.mFirstSeen, entry.mLastSeen, entry.mCount));
+        }
+        return records;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public long getExpiry() {
+        return mExpiry;
+    }
+
+    public int getMaxDevices() {
+        return mMaxDevices;
+    }
+}
@@ -0,0 +1,15 @@
+package com.wx.blechat;
+
+import java.util.List;
+
+/**
+ * Optional interface for discovery callbacks that want the whole list of devices around,
+ * as kept by the scan cache, instead of only the new ones.
+ */
+public interface BLEScanCacheCallback {
+    /**
+     * The devices around have changed: new ones, significant RSSI changes or devices gone.
+     * Called at most once per scan report interval, with all the devices currently seen.
+     */
+    void onDevicesChanged(List<BLEScanRecord> devices);
+}
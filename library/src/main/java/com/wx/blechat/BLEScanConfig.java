@@ -0,0 +1,112 @@
+package com.wx.blechat;
+
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * Scan parameters for BLECentralHelper.startScan(BLEScanConfig).
+ * <p>
+ * With a report delay greater than 0 the scan is batched: the controller collects the
+ * advertisements and the app is woken up once per batch via onBatchScanResults(). If the
+ * controller doesn't support offloaded batching the scan falls back to immediate reports.
+ * Match mode and number of matches are only applied on Android 6.0+.
+ */
+public class BLEScanConfig {
+
+    public static final BLEScanConfig DEFAULT = new Builder().build();
+
+    private final int mScanMode;
+    private final long mReportDelay;
+    private final int mMatchMode;
+    private final int mNumOfMatches;
+
+    private BLEScanConfig(Builder builder) {
+        mScanMode = builder.mScanMode;
+        mReportDelay = builder.mReportDelay;
+        mMatchMode = builder.mMatchMode;
+        mNumOfMatches = builder.mNumOfMatches;
+    }
+
+    /**
+     * Batched, low power scan: the app wakes up once every reportDelay millis
+     */
+    public static BLEScanConfig batched(long reportDelay) {
+        return new Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .setReportDelay(reportDelay)
+                .build();
+    }
+
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    public long getReportDelay() {
+        return mReportDelay;
+    }
+
+    public boolean isBatched() {
+        return mReportDelay > 0;
+    }
+
+    public int getMatchMode() {
+        return mMatchMode;
+    }
+
+    public int getNumOfMatches() {
+        return mNumOfMatches;
+    }
+
+    public Builder buildUpon() {
+        return new Builder()
+                .setScanMode(mScanMode)
+                .setReportDelay(mReportDelay)
+                .setMatchMode(mMatchMode)
+                .setNumOfMatches(mNumOfMatches);
+    }
+
+    public static class Builder {
+        private int mScanMode = ScanSettings.SCAN_MODE_BALANCED;
+        private long mReportDelay = 0;
+        private int mMatchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+        private int mNumOfMatches = ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT;
+
+        /**
+         * @param scanMode One of ScanSettings.SCAN_MODE_*
+         */
+        public Builder setScanMode(int scanMode) {
+            mScanMode = scanMode;
+            return this;
+        }
+
+        /**
+         * @param reportDelay Millis the controller batches results for, 0 for immediate reports
+         */
+        public Builder setReportDelay(long reportDelay) {
+            if (reportDelay < 0) {
+                throw new IllegalArgumentException("Invalid report delay: " + reportDelay);
+            }
+            mReportDelay = reportDelay;
+            return this;
+        }
+
+        /**
+         * @param matchMode One of ScanSettings.MATCH_MODE_*
+         */
+        public Builder setMatchMode(int matchMode) {
+            mMatchMode = matchMode;
+            return this;
+        }
+
+        /**
+         * @param numOfMatches One of ScanSettings.MATCH_NUM_*
+         */
+        public Builder setNumOfMatches(int numOfMatches) {
+            mNumOfMatches = numOfMatches;
+            return this;
+        }
+
+        public BLEScanConfig build() {
+            return new BLEScanConfig(this);
+        }
+    }
+}
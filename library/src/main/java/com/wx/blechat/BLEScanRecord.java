@@ -0,0 +1,73 @@
+package com.wx.blechat;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * A device seen while scanning, as kept by {@link BLEScanCache}.
+ * Instances handed to listeners are snapshots and never change.
+ */
+public class BLEScanRecord {
+    private final BluetoothDevice mDevice;
+    private final String mAddress;
+    private final int mRssi;
+    private final float mSmoothedRssi;
+    private final long mFirstSeen;
+    private final long mLastSeen;
+    private final int mCount;
+
+    BLEScanRecord(BluetoothDevice device, String address, int rssi, float smoothedRssi,
+                  long firstSeen, long lastSeen, int count) {
+        mDevice = device;
+        mAddress = address;
+        mRssi = rssi;
+        mSmoothedRssi = smoothedRssi;
+        mFirstSeen = firstSeen;
+        mLastSeen = lastSeen;
+        mCount = count;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * RSSI of the last advertisement received
+     */
+    public int getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * Exponentially weighted moving average of the RSSI
+     */
+    public float getSmoothedRssi() {
+        return mSmoothedRssi;
+    }
+
+    /**
+     * Time of the first and last advertisement, in SystemClock.elapsedRealtime() millis
+     */
+    public long getFirstSeen() {
+        return mFirstSeen;
+    }
+
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+
+    /**
+     * Number of advertisements received
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String toString() {
+        return mAddress + " @ " + Math.round(mSmoothedRssi);
+    }
+}
@@ -0,0 +1,254 @@
+package com.wx.blechat;
+
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Duty cycles the LE scanner instead of leaving it on or off.
+ * <p>
+ * Every cycle scans for a window and then stays idle until the interval is over. There are
+ * three levels:
+ * <ul>
+ * <li>FAST: low latency scanning with no idle time. Used after a new device shows up.</li>
+ * <li>NORMAL: balanced scanning, a short window every few seconds.</li>
+ * <li>SLOW: low power scanning, a short window every half a minute.</li>
+ * </ul>
+ * A new device escalates to FAST. After STABLE_CYCLES cycles without new devices the
+ * scheduler backs off one level. While paused (i.e. a bulk transfer is in progress) the
+ * scanner stays off, and the cycle restarts at the current level on resume.
+ * <p>
+ * Android throttles apps starting more than 5 scans in 30 seconds, so windows are never
+ * restarted more often than that: a start that would go over the limit, be it a new window,
+ * a resume or an escalation to FAST, is deferred until allowed. All the methods are thread
+ * safe; timers run in the given Handler.
+ */
+public class BLEScanScheduler {
+    private static final String TAG = "BLEScanScheduler";
+
+    public static final int LEVEL_SLOW = 0;
+    public static final int LEVEL_NORMAL = 1;
+    public static final int LEVEL_FAST = 2;
+
+    /**
+     * Cycles without new devices before backing off one level
+     */
+    public static final int STABLE_CYCLES = 3;
+
+    private static final int[] SCAN_MODES = {
+            ScanSettings.SCAN_MODE_LOW_POWER,
+            ScanSettings.SCAN_MODE_BALANCED,
+            ScanSettings.SCAN_MODE_LOW_LATENCY
+    };
+    private static final long[] WINDOWS = {2000, 4000, 10000};
+    private static final long[] INTERVALS = {30000, 10000, 10000};
+
+    /**
+     * Android throttles more than this many scan starts in START_PERIOD
+     */
+    private static final int MAX_STARTS = 5;
+    // Android's 30 seconds, with some slack
+    private static final long START_PERIOD = 30500;
+
+    /**
+     * Turns the radio on and off. Called from the scheduler Handler.
+     */
+    public interface Scanner {
+        void startScan(BLEScanConfig config);
+
+        void stopScan();
+    }
+
+    private final Handler mHandler;
+    private final Scanner mScanner;
+
+    private boolean mRunning = false;
+    private boolean mPaused = false;
+    private boolean mScanning = false;
+    private int mLevel = LEVEL_FAST;
+    private int mScanningLevel = -1;
+    private int mStableCycles = 0;
+    private boolean mNewDevices = false;
+    // Times of the last radio starts, a ring of MAX_STARTS
+    private final long[] mStartTimes = new long[MAX_STARTS];
+    private int mStartCount = 0;
+
+    public BLEScanScheduler(Handler handler, Scanner scanner) {
+        mHandler = handler;
+        mScanner = scanner;
+    }
+
+    /**
+     * Starts cycling, at the FAST level
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mLevel = LEVEL_FAST;
+        mStableCycles = 0;
+        mNewDevices = false;
+        if (!mPaused) {
+            startWindow();
+        }
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        cancelTimers();
+        stopRadio();
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Pauses or resumes the scanning. Pausing turns the radio off until resumed, even if
+     * the scheduler is started meanwhile.
+     */
+    public synchronized void setPaused(boolean paused) {
+        if (mPaused == paused) {
+            return;
+        }
+        mPaused = paused;
+        Log.d(TAG, paused ? "Paused" : "Resumed");
+        if (!mRunning) {
+            return;
+        }
+        cancelTimers();
+        if (paused) {
+            stopRadio();
+        } else {
+            startWindow();
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * A device not seen before has been found: scan hard for a while, more may be coming
+     */
+    public synchronized void onNewDevice() {
+        mNewDevices = true;
+        if (mRunning && !mPaused && mLevel != LEVEL_FAST) {
+            mLevel = LEVEL_FAST;
+            mStableCycles = 0;
+            if (mScanning) {
+                // Switch to low latency right away, the window restarts
+                cancelTimers();
+                startWindow();
+            }
+        }
+    }
+
+    public synchronized int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return length of a whole cycle at the current level, in millis
+     */
+    public synchronized long getInterval() {
+        return INTERVALS[mLevel];
+    }
+
+    private void startWindow() {
+        if (!mScanning || mScanningLevel != mLevel) {
+            long now = SystemClock.elapsedRealtime();
+            long delay = getStartDelay(now);
+            if (delay > 0) {
+                // One more start would get us throttled, try again once allowed
+                Log.d(TAG, "Deferring scan start " + delay + " ms");
+                mHandler.postDelayed(mStartWindow, delay);
+                return;
+            }
+            mStartTimes[mStartCount++ % MAX_STARTS] = now;
+            mScanner.startScan(new BLEScanConfig.Builder()
+                    .setScanMode(SCAN_MODES[mLevel])
+                    .build());
+            mScanning = true;
+            mScanningLevel = mLevel;
+        }
+        mNewDevices = false;
+        mHandler.postDelayed(mEndWindow, WINDOWS[mLevel]);
+    }
+
+    /**
+     * @return millis until the radio can be started again without being throttled
+     */
+    private long getStartDelay(long now) {
+        if (mStartCount < MAX_STARTS) {
+            return 0;
+        }
+        // The oldest of the last MAX_STARTS starts
+        long oldest = mStartTimes[mStartCount % MAX_STARTS];
+        return Math.max(oldest + START_PERIOD - now, 0);
+    }
+
+    private void stopRadio() {
+        if (mScanning) {
+            mScanner.stopScan();
+            mScanning = false;
+            mScanningLevel = -1;
+        }
+    }
+
+    private void cancelTimers() {
+        mHandler.removeCallbacks(mEndWindow);
+        mHandler.removeCallbacks(mStartWindow);
+    }
+
+    /**
+     * Decides the level of the next cycle from what this window found
+     */
+    private void adapt() {
+        if (mNewDevices) {
+            mLevel = LEVEL_FAST;
+            mStableCycles = 0;
+        } else if (mLevel > LEVEL_SLOW && ++mStableCycles >= STABLE_CYCLES) {
+            mLevel--;
+            mStableCycles = 0;
+            Log.d(TAG, "Stable, backing off to level " + mLevel);
+        }
+    }
+
+    private final Runnable mEndWindow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BLEScanScheduler.this) {
+                if (!mRunning || mPaused) {
+                    return;
+                }
+                int level = mLevel;
+                adapt();
+                long idle = INTERVALS[level] - WINDOWS[level];
+                if (idle <= 0 && mLevel == level) {
+                    // Continuous scanning, keep the radio on
+                    startWindow();
+                    return;
+                }
+                stopRadio();
+                mHandler.postDelayed(mStartWindow, Math.max(idle, 0));
+            }
+        }
+    };
+
+    private final Runnable mStartWindow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BLEScanScheduler.this) {
+                if (mRunning && !mPaused) {
+                    startWindow();
+                }
+            }
+        }
+    };
+}
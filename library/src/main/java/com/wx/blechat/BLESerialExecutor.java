@@ -0,0 +1,80 @@
+package com.wx.blechat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs its tasks one at a time, in the order they were submitted, on a shared Executor.
+ * <p>
+ * Several of them can share a thread pool: the tasks of each one keep their order, while
+ * those of different ones run in parallel. A task is only handed to the pool once the
+ * previous one has finished, so a slow task delays its own queue and no other.
+ * Once the shared Executor is shut down, the tasks still queued are dropped.
+ * <p>
+ * This class is pure Java, to be tested on the JVM.
+ */
+public class BLESerialExecutor implements Executor {
+
+    private final Executor mExecutor;
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRunning = false;
+
+    public BLESerialExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the shared Executor refuses it, shut down
+     */
+    @Override
+    public synchronized void execute(Runnable task) {
+        mTasks.add(task);
+        if (!mRunning) {
+            mRunning = true;
+            try {
+                mExecutor.execute(mDrain);
+            } catch (RejectedExecutionException e) {
+                mTasks.clear();
+                mRunning = false;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the tasks waiting, not counting the one running
+     */
+    public synchronized int getPendingCount() {
+        return mTasks.size();
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (BLESerialExecutor.this) {
+                task = mTasks.poll();
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (BLESerialExecutor.this) {
+                    if (mTasks.isEmpty()) {
+                        mRunning = false;
+                    } else {
+                        // Back to the pool, so a busy queue doesn't hold on to a thread
+                        try {
+                            mExecutor.execute(mDrain);
+                        } catch (RejectedExecutionException e) {
+                            // Shut down: the tasks left will never run, and the next
+                            // execute() gets the rejection
+                            mTasks.clear();
+                            mRunning = false;
+                        }
+                    }
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,204 @@
+package com.wx.blechat;
+
+/**
+ * Message framing for byte streams such as RFCOMM sockets.
+ * <p>
+ * A socket read returns whatever has arrived, part of a message or several of them. Every
+ * message is sent behind a small header so the receiver can tell them apart:
+ * <pre>
+ *   varint     payload length, 7 bits per byte, least significant group first
+ *   byte       message type, TYPE_DATA unless the application defines its own
+ *   ...        payload
+ * </pre>
+ * A {@link Decoder} is fed the bytes as they are read and hands out whole messages. Those
+ * fully contained in a read are slices of its buffer, only messages spanning several reads
+ * are copied.
+ * <p>
+ * This class is pure Java so it can be used by both BluetoothChatService and BLEPeripheralHelper.
+ */
+public class BLEStreamFramer {
+
+    public static final int TYPE_DATA = 0;
+
+    /**
+     * Longest header: a 5 bytes varint and the type
+     */
+    public static final int MAX_HEADER_SIZE = 6;
+
+    /**
+     * Default max size of a received message
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+
+    private BLEStreamFramer() {
+    }
+
+    public static int getHeaderSize(int length) {
+        int size = 2;
+        while ((length >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the header of a message
+     *
+     * @return the header size
+     */
+    public static int putHeader(byte[] buffer, int offset, int type, int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        if (type < 0 || type > 0xFF) {
+            throw new IllegalArgumentException("Invalid type: " + type);
+        }
+        int start = offset;
+        while ((length & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        buffer[offset++] = (byte) length;
+        buffer[offset++] = (byte) type;
+        return offset - start;
+    }
+
+    /**
+     * @return the framed message, ready to be written in one go
+     */
+    public static byte[] encode(int type, byte[] data, int offset, int length) {
+        byte[] frame = new byte[getHeaderSize(length) + length];
+        int headerSize = putHeader(frame, 0, type, length);
+        System.arraycopy(data, offset, frame, headerSize, length);
+        return frame;
+    }
+
+    public static byte[] encode(int type, byte[] data) {
+        return encode(type, data, 0, data.length);
+    }
+
+    /**
+     * Splits a byte stream in messages. Not thread safe, use one Decoder per stream.
+     */
+    public static class Decoder {
+
+        public interface Listener {
+            /**
+             * A whole message has been received. Like the buffer fed to the Decoder, it's
+             * only valid during this call, retain() it to keep it.
+             */
+            void onMessage(int type, BLEBuffer message);
+
+            /**
+             * The stream is malformed. The Decoder starts over from the next byte, but
+             * there is no telling where the next message starts: close the stream.
+             */
+            void onError(String error);
+        }
+
+        private static final int STATE_LENGTH = 0;
+        private static final int STATE_TYPE = 1;
+        private static final int STATE_PAYLOAD = 2;
+
+        private final int mMaxMessageSize;
+        private final Listener mListener;
+
+        private int mState = STATE_LENGTH;
+        private int mLength;
+        private int mShift;
+        private int mType;
+        // Message spanning several reads, null while none is being reassembled
+        private byte[] mAssembly;
+        private int mAssembled;
+
+        public Decoder(Listener listener) {
+            this(DEFAULT_MAX_MESSAGE_SIZE, listener);
+        }
+
+        public Decoder(int maxMessageSize, Listener listener) {
+            mMaxMessageSize = maxMessageSize;
+            mListener = listener;
+        }
+
+        /**
+         * Feeds the bytes of a read to the decoder
+         *
+         * @return false if the stream is malformed
+         */
+        public boolean decode(BLEBuffer buffer) {
+            byte[] data = buffer.array();
+            int offset = buffer.offset();
+            int end = offset + buffer.length();
+            while (offset < end) {
+                switch (mState) {
+                    case STATE_LENGTH:
+                        int b = data[offset++];
+                        mLength |= (b & 0x7F) << mShift;
+                        if ((b & 0x80) != 0) {
+                            mShift += 7;
+                            if (mShift > 28) {
+                                return fail("Malformed length");
+                            }
+                        } else if (mLength < 0 || mLength > mMaxMessageSize) {
+                            return fail("Invalid message length: " + mLength);
+                        } else {
+                            mState = STATE_TYPE;
+                        }
+                        break;
+                    case STATE_TYPE:
+                        mType = data[offset++] & 0xFF;
+                        mState = STATE_PAYLOAD;
+                        if (mLength == 0) {
+                            deliver(buffer.slice(offset, 0));
+                        }
+                        break;
+                    default:
+                        int available = end - offset;
+                        if (mAssembly == null && available >= mLength) {
+                            // The whole message is in this read
+                            int start = offset;
+                            offset += mLength;
+                            deliver(buffer.slice(start, mLength));
+                            break;
+                        }
+                        if (mAssembly == null) {
+                            mAssembly = new byte[mLength];
+                            mAssembled = 0;
+                        }
+                        int count = Math.min(available, mLength - mAssembled);
+                        System.arraycopy(data, offset, mAssembly, mAssembled, count);
+                        mAssembled += count;
+                        offset += count;
+                        if (mAssembled == mLength) {
+                            // A message of its own, the listener can keep it
+                            deliver(BLEBuffer.wrap(mAssembly, 0, mLength));
+                        }
+                        break;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Discards any partially received message
+         */
+        public void reset() {
+            mState = STATE_LENGTH;
+            mLength = 0;
+            mShift = 0;
+            mAssembly = null;
+        }
+
+        private void deliver(BLEBuffer message) {
+            int type = mType;
+            reset();
+            mListener.onMessage(type, message);
+        }
+
+        private boolean fail(String error) {
+            reset();
+            mListener.onError(error);
+            return false;
+        }
+    }
+}
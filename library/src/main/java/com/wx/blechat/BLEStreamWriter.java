@@ -0,0 +1,241 @@
+package com.wx.blechat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Writes to a stream, such as an RFCOMM socket, in a thread of its own.
+ * <p>
+ * Callers queue their writes and return right away. The writer thread coalesces the small
+ * ones: it waits up to the flush window for more writes, and sends everything queued in a
+ * single stream write of up to maxBatchSize bytes, so a burst of small messages doesn't
+ * cost a packet each. Each write is completed once its batch is written, or has failed.
+ * <p>
+ * The queue is bounded in bytes. When it's full, {@link #offer} refuses new writes, and
+ * {@link #write} blocks until there is room. A write error fails everything queued and
+ * closes the writer.
+ * <p>
+ * This class is pure Java, to be tested on the JVM.
+ */
+public class BLEStreamWriter {
+
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 64 * 1024;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 4 * 1024;
+    public static final long DEFAULT_FLUSH_WINDOW = 2;
+
+    private final OutputStream mOut;
+    private final int mMaxQueuedBytes;
+    private final long mFlushWindow;
+    private final byte[] mBatch;
+    private final Thread mThread;
+    private final ArrayDeque<Pending> mQueue = new ArrayDeque<>();
+    private int mQueuedBytes = 0;
+    private boolean mClosed = false;
+    private volatile BLEMetrics mMetrics;
+
+    public BLEStreamWriter(OutputStream out, String name) {
+        this(out, name, DEFAULT_MAX_QUEUED_BYTES, DEFAULT_MAX_BATCH_SIZE, DEFAULT_FLUSH_WINDOW);
+    }
+
+    /**
+     * @param maxQueuedBytes Bound of the queue. A single write bigger than this is only
+     *                       accepted when the queue is empty.
+     * @param maxBatchSize   Max size of a coalesced stream write. Bigger writes go alone.
+     * @param flushWindow    Millis to wait for more writes before sending a batch that
+     *                       isn't full. 0 sends right away.
+     */
+    public BLEStreamWriter(OutputStream out, String name, int maxQueuedBytes, int maxBatchSize, long flushWindow) {
+        mOut = out;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mFlushWindow = flushWindow;
+        mBatch = new byte[maxBatchSize];
+        mThread = new Thread(mWriteLoop, name);
+        mThread.start();
+    }
+
+    /**
+     * Writes, batches and messages written, latency and failures are counted in the given
+     * metrics
+     */
+    public void setMetrics(BLEMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Queues a write if there is room for it
+     *
+     * @param completion Called from the writer thread. May be null.
+     * @return false if the queue is full or the writer closed. The completion isn't called.
+     */
+    public synchronized boolean offer(byte[] data, BLETransport.Completion completion) {
+        if (mClosed || !hasRoom(data.length)) {
+            return false;
+        }
+        enqueue(data, completion);
+        return true;
+    }
+
+    /**
+     * Queues a write, waiting for room if needed
+     *
+     * @return false if the writer is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean write(byte[] data, BLETransport.Completion completion) throws InterruptedException {
+        while (!mClosed && !hasRoom(data.length)) {
+            wait();
+        }
+        if (mClosed) {
+            return false;
+        }
+        enqueue(data, completion);
+        return true;
+    }
+
+    public synchronized int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /**
+     * Stops the writer thread. The writes not sent yet fail.
+     */
+    public void close() {
+        if (markClosed()) {
+            mThread.interrupt();
+        }
+    }
+
+    /**
+     * @return false if it was already closed
+     */
+    private synchronized boolean markClosed() {
+        if (mClosed) {
+            return false;
+        }
+        mClosed = true;
+        // Wake up the writers waiting for room
+        notifyAll();
+        return true;
+    }
+
+    private boolean hasRoom(int length) {
+        return mQueuedBytes == 0 || mQueuedBytes + length <= mMaxQueuedBytes;
+    }
+
+    private void enqueue(byte[] data, BLETransport.Completion completion) {
+        mQueue.add(new Pending(data, completion));
+        mQueuedBytes += data.length;
+        notifyAll();
+    }
+
+    private final Runnable mWriteLoop = new Runnable() {
+        @Override
+        public void run() {
+            ArrayDeque<Pending> batch = new ArrayDeque<>();
+            try {
+                while (true) {
+                    int length = takeBatch(batch);
+                    if (length < 0) {
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    if (batch.size() == 1) {
+                        mOut.write(batch.peek().mData);
+                    } else {
+                        int offset = 0;
+                        for (Pending pending : batch) {
+                            System.arraycopy(pending.mData, 0, mBatch, offset, pending.mData.length);
+                            offset += pending.mData.length;
+                        }
+                        mOut.write(mBatch, 0, length);
+                    }
+                    mOut.flush();
+                    BLEMetrics metrics = mMetrics;
+                    if (metrics != null) {
+                        metrics.recordWriteLatency((System.nanoTime() - start) / 1000);
+                        metrics.add(BLEMetrics.BYTES_SENT, length);
+                        metrics.add(BLEMetrics.MESSAGES_SENT, batch.size());
+                    }
+                    complete(batch, true);
+                }
+            } catch (IOException e) {
+                BLEMetrics metrics = mMetrics;
+                if (metrics != null) {
+                    metrics.increment(BLEMetrics.WRITE_FAILURES);
+                }
+                markClosed();
+            } catch (InterruptedException e) {
+                // Closed
+            }
+            complete(batch, false);
+            synchronized (BLEStreamWriter.this) {
+                batch.addAll(mQueue);
+                mQueue.clear();
+                mQueuedBytes = 0;
+            }
+            complete(batch, false);
+        }
+    };
+
+    /**
+     * Waits for writes and takes as many as fit in a batch, or a single big one
+     *
+     * @return the bytes taken, -1 once closed
+     */
+    private synchronized int takeBatch(ArrayDeque<Pending> batch) throws InterruptedException {
+        while (mQueue.isEmpty() && !mClosed) {
+            wait();
+        }
+        if (mFlushWindow > 0 && mQueuedBytes < mBatch.length) {
+            // Give the writes of a burst a chance to join this batch
+            long deadline = System.nanoTime() + mFlushWindow * 1000000L;
+            long remaining;
+            while (!mClosed && mQueuedBytes < mBatch.length
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                wait(remaining / 1000000L, (int) (remaining % 1000000L));
+            }
+        }
+        if (mClosed) {
+            return -1;
+        }
+        int length = 0;
+        Pending pending;
+        while ((pending = mQueue.peek()) != null) {
+            int size = pending.mData.length;
+            if (length > 0 && length + size > mBatch.length) {
+                break;
+            }
+            mQueue.poll();
+            batch.add(pending);
+            length += size;
+            if (length > mBatch.length) {
+                // Too big to coalesce, it goes alone
+                break;
+            }
+        }
+        mQueuedBytes -= length;
+        // Room for the writers waiting
+        notifyAll();
+        return length;
+    }
+
+    private static void complete(ArrayDeque<Pending> batch, boolean success) {
+        Pending pending;
+        while ((pending = batch.poll()) != null) {
+            if (pending.mCompletion != null) {
+                pending.mCompletion.onComplete(success);
+            }
+        }
+    }
+
+    private static class Pending {
+        final byte[] mData;
+        final BLETransport.Completion mCompletion;
+
+        Pending(byte[] data, BLETransport.Completion completion) {
+            mData = data;
+            mCompletion = completion;
+        }
+    }
+}
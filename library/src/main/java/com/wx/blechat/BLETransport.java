@@ -0,0 +1,62 @@
+package com.wx.blechat;
+
+/**
+ * A connection to a single peer that carries whole messages, whatever the link below.
+ * <p>
+ * Framing, compression and flow control written against this interface work the same on
+ * every implementation:
+ * <ul>
+ * <li>{@link BLEGattTransport}: the BLE chat service, through BLECentralHelper</li>
+ * <li>{@link BLERfcommTransport}: a classic Bluetooth socket, through BluetoothChatService</li>
+ * <li>{@link BLELoopbackTransport}: an in-memory pair, to run and load-test that code on a
+ * plain JVM</li>
+ * </ul>
+ * Messages are delivered in order. Listener events may come from any thread, depending on
+ * the implementation.
+ */
+public interface BLETransport {
+
+    interface Listener {
+        /**
+         * The transport is ready to send
+         */
+        void onConnected(BLETransport transport);
+
+        void onReceive(BLETransport transport, byte[] data);
+
+        void onDisconnected(BLETransport transport);
+
+        void onError(BLETransport transport, String error);
+    }
+
+    interface Completion {
+        /**
+         * @param success false if the message couldn't be handed to the peer
+         */
+        void onComplete(boolean success);
+    }
+
+    void setListener(Listener listener);
+
+    void connect();
+
+    boolean isConnected();
+
+    /**
+     * Sends a message of any size, after those sent before it
+     *
+     * @param completion Called once the message is sent, or has failed. May be null.
+     */
+    void send(byte[] data, Completion completion);
+
+    /**
+     * @return the size of the biggest packet the link carries in one go. Senders can use it
+     * to size their writes, messages bigger than this are split by the transport.
+     */
+    int getMtu();
+
+    /**
+     * Disconnects and releases the transport. Pending completions fail.
+     */
+    void close();
+}
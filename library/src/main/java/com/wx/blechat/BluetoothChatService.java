@@ -24,18 +24,29 @@ import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
+ * <p>
+ * In server mode, see {@link #startServer(int)}, it keeps accepting connections and
+ * serves several devices at once.
  */
 public class BluetoothChatService {
     // Debugging
@@ -59,6 +70,16 @@ public class BluetoothChatService {
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
     private int mState;
+    private final BLEBufferPool mBufferPool = new BLEBufferPool();
+    // Metrics of the current connection, replaced on every new one
+    private volatile BLEMetrics mMetrics = new BLEMetrics();
+    private String mLastAddress;
+    // Server mode: connections by device address, each one read by a thread of the pool.
+    // mMaxConnections bounds the connections, not the pool, see startServer()
+    private final Map<String, ConnectedThread> mConnections = new HashMap<>();
+    private ExecutorService mServerPool;
+    private int mMaxConnections;
+    private volatile boolean mFraming = false;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -98,6 +119,13 @@ public class BluetoothChatService {
         return mState;
     }
 
+    /**
+     * @return the transfer metrics of the current, or last, connection
+     */
+    public BLEMetrics.Snapshot getMetrics() {
+        return mMetrics.snapshot();
+    }
+
     /**
      * Start the chat service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume()
@@ -133,6 +161,97 @@ public class BluetoothChatService {
 
     }
 
+    /**
+     * Start the chat service in server mode: it listens until stopped, serving up to
+     * maxConnections devices at once. Connections beyond that are refused.
+     * Each connection reports its state with a MESSAGE_CONNECTION_STATE, and its reads
+     * with a MESSAGE_READ carrying its DEVICE_ADDRESS.
+     * <p>
+     * Every connection takes two threads: a reader from the pool and its own writer, see
+     * {@link BLEStreamWriter}. A connection replaced by a reconnection of the same device keeps
+     * its reader until the read of its closed socket fails, so the pool doesn't have a fixed
+     * size: the new connection must not wait behind it.
+     *
+     * @param maxConnections Number of devices served at once
+     */
+    public synchronized void startServer(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        stop();
+        Log.d(TAG, "startServer " + maxConnections);
+        mMaxConnections = maxConnections;
+        mServerPool = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int mCount = 0;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "RfcommConnection-" + mCount++);
+            }
+        });
+        start();
+    }
+
+    /**
+     * Enables the framing mode, see {@link BLEStreamFramer}: every write is sent as a
+     * message, and whole messages are received as MESSAGE_FRAME instead of MESSAGE_READ.
+     * Both ends must use the same mode. It applies to the connections made afterwards.
+     */
+    public void setFraming(boolean enabled) {
+        mFraming = enabled;
+    }
+
+    public boolean isFraming() {
+        return mFraming;
+    }
+
+    public synchronized boolean isServer() {
+        return mServerPool != null;
+    }
+
+    /**
+     * @return the devices connected in server mode
+     */
+    public synchronized List<BluetoothDevice> getConnectedDevices() {
+        List<BluetoothDevice> devices = new ArrayList<>(mConnections.size());
+        for (ConnectedThread connection : mConnections.values()) {
+            devices.add(connection.mmDevice);
+        }
+        return devices;
+    }
+
+    /**
+     * @return STATE_CONNECTED if the device is connected in server mode, STATE_NONE if not
+     */
+    public synchronized int getConnectionState(String address) {
+        return mConnections.containsKey(address) ? STATE_CONNECTED : STATE_NONE;
+    }
+
+    /**
+     * @return the transfer metrics of the connection with a device in server mode, null
+     * if it's not connected
+     */
+    public BLEMetrics.Snapshot getMetrics(String address) {
+        ConnectedThread connection;
+        synchronized (this) {
+            connection = mConnections.get(address);
+        }
+        return connection != null ? connection.mmMetrics.snapshot() : null;
+    }
+
+    /**
+     * Closes the connection with a device in server mode
+     */
+    public void disconnect(String address) {
+        ConnectedThread connection;
+        synchronized (this) {
+            connection = mConnections.get(address);
+        }
+        if (connection != null) {
+            connection.cancel();
+        }
+    }
+
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
      *
@@ -156,6 +275,13 @@ public class BluetoothChatService {
             mConnectedThread = null;
         }
 
+        BLEMetrics metrics = new BLEMetrics();
+        if (device.getAddress().equals(mLastAddress)) {
+            metrics.add(BLEMetrics.RECONNECTS, mMetrics.get(BLEMetrics.RECONNECTS) + 1);
+        }
+        mLastAddress = device.getAddress();
+        mMetrics = metrics;
+
         // Start the thread to connect with the given device
         mConnectThread = new ConnectThread(device, secure);
         mConnectThread.start();
@@ -194,6 +320,11 @@ public class BluetoothChatService {
             mInsecureAcceptThread = null;
         }
 
+        // Accepted connections didn't go through connect()
+        if (role == Constants.ROLE.SERVER) {
+            mMetrics = new BLEMetrics();
+        }
+
         // Start the thread to manage the connection and perform transmissions
         mConnectedThread = new ConnectedThread(socket, socketType);
         mConnectedThread.start();
@@ -220,6 +351,16 @@ public class BluetoothChatService {
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
+        if (mServerPool != null) {
+            for (ConnectedThread connection : mConnections.values()) {
+                connection.cancel();
+                notifyConnectionState(connection.mmDevice.getAddress(), STATE_NONE);
+            }
+            mConnections.clear();
+            mServerPool.shutdown();
+            mServerPool = null;
+        }
+
         if (mConnectThread != null) {
             mConnectThread.cancel();
             mConnectThread = null;
@@ -243,21 +384,110 @@ public class BluetoothChatService {
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queues a write on the connection, it doesn't block. Small writes made in a burst are
+     * sent together, see {@link BLEStreamWriter}.
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @return false if not connected or too many writes are pending
+     * @see ConnectedThread#write(int, byte[], BLETransport.Completion)
+     */
+    public boolean write(byte[] out) {
+        return write(BLEStreamFramer.TYPE_DATA, out, null);
+    }
+
+    /**
+     * Queues a message of the given type. The type is only sent in framing mode.
+     *
+     * @param completion Called from the writer thread once written, or failed. It isn't
+     *                   called when the write isn't queued. May be null.
+     * @return false if not connected or too many writes are pending
      */
-    public void write(byte[] out) {
+    public boolean write(int type, byte[] out, BLETransport.Completion completion) {
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
+            if (mState != STATE_CONNECTED) return false;
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        return r.write(type, out, completion);
+    }
+
+    /**
+     * Queues a write to a device connected in server mode
+     *
+     * @return false if it's not connected or too many writes are pending
+     */
+    public boolean write(String address, byte[] out) {
+        ConnectedThread connection;
+        synchronized (this) {
+            connection = mConnections.get(address);
+        }
+        return connection != null && connection.write(BLEStreamFramer.TYPE_DATA, out, null);
+    }
+
+    /**
+     * Queues a write to every device connected in server mode
+     *
+     * @return the number of devices the write was queued for
+     */
+    public int broadcast(byte[] out) {
+        ConnectedThread[] connections;
+        synchronized (this) {
+            connections = mConnections.values().toArray(new ConnectedThread[mConnections.size()]);
+        }
+        int written = 0;
+        for (ConnectedThread connection : connections) {
+            if (connection.write(BLEStreamFramer.TYPE_DATA, out, null)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Starts serving a connection accepted in server mode
+     */
+    private synchronized void serverConnected(BluetoothSocket socket, String socketType) {
+        BluetoothDevice device = socket.getRemoteDevice();
+        String address = device.getAddress();
+        ConnectedThread previous = mConnections.remove(address);
+        if (previous != null) {
+            // The device reconnected before we noticed it was gone
+            previous.cancel();
+        } else if (mConnections.size() >= mMaxConnections) {
+            Log.w(TAG, "Refusing " + address + ", already serving " + mConnections.size());
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close unwanted socket", e);
+            }
+            return;
+        }
+        ConnectedThread connection = new ConnectedThread(socket, socketType, device);
+        mConnections.put(address, connection);
+        mServerPool.execute(connection);
+        notifyConnectionState(address, STATE_CONNECTED);
+    }
+
+    /**
+     * Indicate that a connection of server mode was lost
+     */
+    private void serverConnectionLost(ConnectedThread connection) {
+        String address = connection.mmDevice.getAddress();
+        synchronized (this) {
+            if (mConnections.get(address) != connection) {
+                // Replaced by a new connection, or already stopped
+                return;
+            }
+            mConnections.remove(address);
+        }
+        notifyConnectionState(address, STATE_NONE);
+    }
+
+    private void notifyConnectionState(String address, int state) {
+        mHandler.obtainMessage(Constants.MESSAGE_CONNECTION_STATE, state, -1, address).sendToTarget();
     }
 
     /**
@@ -352,6 +582,15 @@ public class BluetoothChatService {
                     synchronized (BluetoothChatService.this) {
                         switch (mState) {
                             case STATE_LISTEN:
+                                if (mServerPool != null) {
+                                    // Server mode, keep listening
+                                    serverConnected(socket, mSocketType);
+                                } else {
+                                    // Situation normal. Start the connected thread.
+                                    connected(socket, socket.getRemoteDevice(),
+                                            mSocketType, Constants.ROLE.SERVER);
+                                }
+                                break;
                             case STATE_CONNECTING:
                                 // Situation normal. Start the connected thread.
                                 connected(socket, socket.getRemoteDevice(),
@@ -427,7 +666,9 @@ public class BluetoothChatService {
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
+                long start = SystemClock.elapsedRealtime();
                 mmSocket.connect();
+                mMetrics.recordConnectionSetup(SystemClock.elapsedRealtime() - start);
             } catch (IOException e) {
                 // Close the socket
                 try {
@@ -461,15 +702,29 @@ public class BluetoothChatService {
     /**
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
+     * In server mode it's run by a thread of the pool instead.
      */
     private class ConnectedThread extends Thread {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+        // Null if the socket streams couldn't be opened
+        private final BLEStreamWriter mmWriter;
+        // The peer in server mode, null otherwise
+        private final BluetoothDevice mmDevice;
+        private final BLEMetrics mmMetrics;
+        // Framing mode only
+        private final BLEStreamFramer.Decoder mmDecoder;
 
         public ConnectedThread(BluetoothSocket socket, String socketType) {
+            this(socket, socketType, null);
+        }
+
+        public ConnectedThread(BluetoothSocket socket, String socketType, BluetoothDevice device) {
             Log.d(TAG, "create ConnectedThread: " + socketType);
             mmSocket = socket;
+            mmDevice = device;
+            mmMetrics = device != null ? new BLEMetrics() : mMetrics;
+            mmDecoder = mFraming ? new BLEStreamFramer.Decoder(mFrameListener) : null;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
@@ -482,25 +737,52 @@ public class BluetoothChatService {
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmWriter = tmpOut != null ? new BLEStreamWriter(tmpOut, "RfcommWriter") : null;
+            if (mmWriter != null) {
+                mmWriter.setMetrics(mmMetrics);
+            }
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
             int bytes;
 
             // Keep listening to the InputStream while connected
             while (true) {
+                // Every read gets its own pooled buffer, so the next read can't overwrite
+                // the bytes the UI Activity hasn't processed yet
+                BLEBuffer buffer = mBufferPool.acquire();
                 try {
                     // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+                    bytes = mmInStream.read(buffer.array());
+                    if (bytes < 0) {
+                        throw new IOException("End of stream");
+                    }
+                    buffer.setSlice(0, bytes);
+                    mmMetrics.add(BLEMetrics.BYTES_RECEIVED, bytes);
+
+                    if (mmDecoder != null) {
+                        // The messages keep the buffer while the Handler hasn't processed them
+                        mmDecoder.decode(buffer);
+                        buffer.release();
+                        continue;
+                    }
+                    mmMetrics.increment(BLEMetrics.MESSAGES_RECEIVED);
+
+                    // Send the obtained bytes to the UI Activity, and give the buffer back
+                    // to the pool once the Handler has processed the message
+                    Message msg = mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer.array());
+                    setDeviceAddress(msg);
+                    msg.sendToTarget();
+                    mHandler.post(buffer.getReleaser());
                 } catch (IOException e) {
+                    buffer.release();
                     Log.e(TAG, "disconnected", e);
+                    if (mmDevice != null) {
+                        cancel();
+                        serverConnectionLost(this);
+                        break;
+                    }
                     connectionLost();
                     // Start the service over to restart listening mode
                     BluetoothChatService.this.start();
@@ -510,24 +792,66 @@ public class BluetoothChatService {
             }
         }
 
+        private void setDeviceAddress(Message msg) {
+            if (mmDevice != null) {
+                Bundle bundle = new Bundle();
+                bundle.putString(Constants.DEVICE_ADDRESS, mmDevice.getAddress());
+                msg.setData(bundle);
+            }
+        }
+
+        private final BLEStreamFramer.Decoder.Listener mFrameListener = new BLEStreamFramer.Decoder.Listener() {
+            @Override
+            public void onMessage(int type, BLEBuffer message) {
+                mmMetrics.increment(BLEMetrics.MESSAGES_RECEIVED);
+                message.retain();
+                Message msg = mHandler.obtainMessage(Constants.MESSAGE_FRAME, type, -1, message);
+                setDeviceAddress(msg);
+                msg.sendToTarget();
+                mHandler.post(message.getReleaser());
+            }
+
+            @Override
+            public void onError(String error) {
+                // Out of sync, the read fails and the connection is handled as lost
+                Log.e(TAG, "Framing error: " + error);
+                cancel();
+            }
+        };
+
         /**
-         * Write to the connected OutStream.
+         * Queue a write to the connected OutStream.
          *
+         * @param type   The message type, only sent in framing mode
          * @param buffer The bytes to write
+         * @return false if the write queue is full or closed
          */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+        public boolean write(int type, final byte[] buffer, final BLETransport.Completion completion) {
+            if (mmWriter == null) {
+                return false;
             }
+            byte[] out = mmDecoder != null ? BLEStreamFramer.encode(type, buffer) : buffer;
+            return mmWriter.offer(out, new BLETransport.Completion() {
+                @Override
+                public void onComplete(boolean success) {
+                    if (success) {
+                        // Share the sent message back to the UI Activity
+                        mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
+                                .sendToTarget();
+                    } else {
+                        Log.e(TAG, "Exception during write");
+                    }
+                    if (completion != null) {
+                        completion.onComplete(success);
+                    }
+                }
+            });
         }
 
         public void cancel() {
+            if (mmWriter != null) {
+                mmWriter.close();
+            }
             try {
                 mmSocket.close();
             } catch (IOException e) {
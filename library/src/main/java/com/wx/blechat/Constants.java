@@ -22,16 +22,25 @@ package com.wx.blechat;
 public interface Constants {
 
     // Message types sent from the BluetoothChatService Handler
+    // MESSAGE_READ: arg1 is the number of bytes read into the obj byte array. The array is
+    // reused once the message has been handled, copy the bytes if you need to keep them.
     public static final int MESSAGE_STATE_CHANGE = 1;
     public static final int MESSAGE_READ = 2;
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
     public static final int MESSAGE_TOAST_FAST = 6;
+    // Server mode only. MESSAGE_CONNECTION_STATE: arg1 is the state of the connection with
+    // the device whose address is obj. MESSAGE_READ also carries the DEVICE_ADDRESS.
+    public static final int MESSAGE_CONNECTION_STATE = 7;
+    // Framing mode only, replaces MESSAGE_READ. MESSAGE_FRAME: arg1 is the message type, obj
+    // a BLEBuffer with the whole message. Like MESSAGE_READ, it's only valid until handled.
+    public static final int MESSAGE_FRAME = 8;
 
     // Key names received from the BluetoothChatService Handler
     public static final String DEVICE_NAME = "device_name";
     public static final String TOAST = "toast";
+    public static final String DEVICE_ADDRESS = "device_address";
     public static enum ROLE {
         SERVER,
         CLIENT
@@ -0,0 +1,42 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BLEBufferPoolTest {
+
+    @Test
+    public void releaseReturnsToPool() {
+        BLEBufferPool pool = new BLEBufferPool(64, 2);
+        BLEBuffer buffer = pool.acquire();
+        assertEquals(64, buffer.capacity());
+        assertEquals(0, buffer.length());
+        assertEquals(0, pool.getPooledCount());
+        buffer.setSlice(4, 10);
+        buffer.release();
+        assertEquals(1, pool.getPooledCount());
+
+        // Reused, back to an empty slice
+        BLEBuffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.offset());
+        assertEquals(0, reused.length());
+        assertEquals(0, pool.getPooledCount());
+        reused.release();
+    }
+
+    @Test
+    public void boundedPool() {
+        BLEBufferPool pool = new BLEBufferPool(64, 2);
+        BLEBuffer[] buffers = new BLEBuffer[4];
+        for (int i = 0; i < buffers.length; i++) {
+            // Allocated when the pool is empty, never blocks
+            buffers[i] = pool.acquire();
+        }
+        for (BLEBuffer buffer : buffers) {
+            buffer.release();
+        }
+        assertEquals(2, pool.getPooledCount());
+    }
+}
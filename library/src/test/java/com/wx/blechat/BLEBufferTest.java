@@ -0,0 +1,88 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BLEBufferTest {
+
+    @Test
+    public void refCount() {
+        BLEBufferPool pool = new BLEBufferPool(64, 2);
+        BLEBuffer buffer = pool.acquire();
+        buffer.retain();
+        buffer.release();
+        // Still retained by someone
+        assertEquals(0, pool.getPooledCount());
+        buffer.release();
+        assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test
+    public void releasedTooManyTimes() {
+        BLEBufferPool pool = new BLEBufferPool(64, 2);
+        BLEBuffer buffer = pool.acquire();
+        buffer.release();
+        try {
+            buffer.release();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            buffer.retain();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        // Recycled only once
+        assertEquals(1, pool.getPooledCount());
+        assertSame(buffer, pool.acquire());
+        assertNotSame(buffer, pool.acquire());
+    }
+
+    @Test
+    public void slice() {
+        BLEBufferPool pool = new BLEBufferPool(64, 2);
+        BLEBuffer buffer = pool.acquire();
+        for (int i = 0; i < 64; i++) {
+            buffer.array()[i] = (byte) i;
+        }
+        buffer.setSlice(0, 64);
+        BLEBuffer slice = buffer.slice(10, 5);
+        assertSame(buffer.array(), slice.array());
+        assertArrayEquals(new byte[]{10, 11, 12, 13, 14}, slice.toByteArray());
+        // A slice of a slice shares the same count
+        BLEBuffer inner = slice.slice(12, 2);
+        assertArrayEquals(new byte[]{12, 13}, inner.toByteArray());
+
+        // Retained through the slice, it outlives the release of the buffer
+        inner.retain();
+        buffer.release();
+        assertEquals(0, pool.getPooledCount());
+        slice.release();
+        assertEquals(1, pool.getPooledCount());
+
+        try {
+            buffer.slice(60, 5);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void wrap() {
+        byte[] array = {1, 2, 3, 4};
+        BLEBuffer buffer = BLEBuffer.wrap(array, 1, 2);
+        assertSame(array, buffer.array());
+        assertArrayEquals(new byte[]{2, 3}, buffer.toByteArray());
+        buffer.getReleaser().run();
+        try {
+            buffer.release();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class BLECompressionTest {
+
+    private static final byte[] TEXT = ("{\"type\":\"message\",\"text\":\"Hello, are you there? "
+            + "Thanks for the data, that is just what I needed.\",\"timestamp\":1234567890}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void roundTrip() throws DataFormatException {
+        BLECompression compression = new BLECompression();
+        byte[] random = new byte[1000];
+        new Random(42).nextBytes(random);
+        byte[][] inputs = {new byte[0], new byte[]{1}, new byte[BLECompression.MIN_DEFLATE_SIZE],
+                TEXT, random, new byte[100000]};
+        for (byte[] data : inputs) {
+            assertArrayEquals(data, compression.decode(compression.encode(data)));
+        }
+        // Offsets on both sides
+        byte[] encoded = compression.encode(TEXT, 10, 50);
+        byte[] padded = new byte[encoded.length + 7];
+        System.arraycopy(encoded, 0, padded, 3, encoded.length);
+        assertArrayEquals(Arrays.copyOfRange(TEXT, 10, 60), compression.decode(padded, 3, encoded.length));
+        compression.release();
+    }
+
+    @Test
+    public void deflatesOnlyWhenSmaller() throws DataFormatException {
+        BLECompression compression = new BLECompression();
+        byte[] encoded = compression.encode(TEXT);
+        assertEquals(BLECompression.ENCODING_DEFLATE, encoded[0]);
+        assertTrue(encoded.length < TEXT.length);
+
+        byte[] random = new byte[200];
+        new Random(42).nextBytes(random);
+        encoded = compression.encode(random);
+        assertEquals(BLECompression.ENCODING_RAW, encoded[0]);
+        assertEquals(random.length + 1, encoded.length);
+
+        byte[] small = new byte[BLECompression.MIN_DEFLATE_SIZE - 1];
+        assertEquals(BLECompression.ENCODING_RAW, compression.encode(small)[0]);
+        compression.release();
+    }
+
+    @Test
+    public void truncatedPayload() {
+        BLECompression compression = new BLECompression();
+        byte[] encoded = compression.encode(new byte[1000]);
+        assertEquals(BLECompression.ENCODING_DEFLATE, encoded[0]);
+        // Cut anywhere: in the length, in the deflate stream
+        for (int length = 1; length < encoded.length; length++) {
+            try {
+                compression.decode(Arrays.copyOf(encoded, length));
+                fail("length " + length);
+            } catch (DataFormatException e) {
+                // Expected
+            }
+        }
+        compression.release();
+    }
+
+    @Test
+    public void malformedPayload() {
+        BLECompression compression = new BLECompression(1000);
+        byte[][] payloads = {
+                new byte[0],
+                new byte[]{2, 0},
+                // Length never ends
+                new byte[]{BLECompression.ENCODING_DEFLATE, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                        (byte) 0x80, (byte) 0x80, 0},
+                // 1001 bytes, over the max size
+                new byte[]{BLECompression.ENCODING_DEFLATE, (byte) 0xE9, 0x07, 0},
+        };
+        for (byte[] payload : payloads) {
+            try {
+                compression.decode(payload);
+                fail(Arrays.toString(payload));
+            } catch (DataFormatException e) {
+                // Expected
+            }
+        }
+        compression.release();
+    }
+
+    @Test
+    public void maxSize() throws DataFormatException {
+        BLECompression sender = new BLECompression();
+        BLECompression receiver = new BLECompression(1000);
+        assertEquals(1000, receiver.decode(sender.encode(new byte[1000])).length);
+        try {
+            receiver.decode(sender.encode(new byte[1001]));
+            fail();
+        } catch (DataFormatException e) {
+            // Expected
+        }
+        sender.release();
+        receiver.release();
+    }
+}
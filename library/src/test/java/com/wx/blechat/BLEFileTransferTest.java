@@ -0,0 +1,214 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BLEFileTransferTest {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * A generated file, handed out a few bytes per read like a slow provider would
+     */
+    private static class FileSource implements BLEFileTransfer.Source {
+        final long mLength;
+        boolean mClosed = false;
+
+        FileSource(long length) {
+            mLength = length;
+        }
+
+        @Override
+        public InputStream open() {
+            return new InputStream() {
+                private long mPosition = 0;
+
+                @Override
+                public int read() {
+                    return mPosition < mLength ? (int) (mPosition++ & 0xFF) : -1;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    if (mPosition >= mLength) {
+                        return -1;
+                    }
+                    int count = (int) Math.min(Math.min(length, 1000), mLength - mPosition);
+                    for (int i = 0; i < count; i++) {
+                        buffer[offset + i] = (byte) mPosition++;
+                    }
+                    return count;
+                }
+
+                @Override
+                public void close() {
+                    mClosed = true;
+                }
+            };
+        }
+
+        @Override
+        public long getLength() {
+            return mLength;
+        }
+    }
+
+    /**
+     * A socket that takes some time with every write
+     */
+    private static class SlowOutput extends OutputStream {
+        final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+        final long mDelay;
+        int mWrites = 0;
+
+        SlowOutput(long delayMillis) {
+            mDelay = delayMillis;
+        }
+
+        @Override
+        public void write(int b) {
+            mWritten.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                Thread.sleep(mDelay);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            mWrites++;
+            mWritten.write(buffer, offset, length);
+        }
+    }
+
+    private static class RecordingListener implements BLEFileTransfer.Listener {
+        final List<Long> mProgress = new ArrayList<>();
+        long mCompleted = -1;
+        long mCancelled = -1;
+        IOException mError;
+
+        @Override
+        public void onProgress(BLEFileTransfer transfer, long sent, long total, long bytesPerSecond) {
+            mProgress.add(sent);
+        }
+
+        @Override
+        public void onComplete(BLEFileTransfer transfer, long sent, long elapsedMillis) {
+            mCompleted = sent;
+        }
+
+        @Override
+        public void onError(BLEFileTransfer transfer, IOException error) {
+            mError = error;
+        }
+
+        @Override
+        public void onCancelled(BLEFileTransfer transfer, long sent) {
+            mCancelled = sent;
+        }
+    }
+
+    @Test
+    public void complete() {
+        FileSource source = new FileSource(64 * CHUNK_SIZE + 123);
+        SlowOutput out = new SlowOutput(10);
+        RecordingListener listener = new RecordingListener();
+        BLEFileTransfer transfer = new BLEFileTransfer(source, out, CHUNK_SIZE, listener);
+        long start = System.nanoTime();
+        transfer.run();
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+
+        assertTrue(transfer.isDone());
+        assertNull(listener.mError);
+        assertEquals(source.mLength, listener.mCompleted);
+        assertEquals(source.mLength, transfer.getBytesSent());
+        assertEquals(source.mLength, transfer.getTotalBytes());
+        assertTrue(source.mClosed);
+        // Chunks are filled even though the source returns less per read
+        assertEquals(65, out.mWrites);
+        byte[] written = out.mWritten.toByteArray();
+        assertEquals(source.mLength, written.length);
+        for (int i = 0; i < written.length; i++) {
+            assertEquals((byte) i, written[i]);
+        }
+
+        // Throttled progress, plus the final one
+        assertTrue(listener.mProgress.size() <= elapsed / BLEFileTransfer.PROGRESS_INTERVAL + 1);
+        assertEquals(source.mLength, (long) listener.mProgress.get(listener.mProgress.size() - 1));
+        for (int i = 1; i < listener.mProgress.size(); i++) {
+            assertTrue(listener.mProgress.get(i) >= listener.mProgress.get(i - 1));
+        }
+    }
+
+    @Test
+    public void cancelMidTransfer() throws Exception {
+        final FileSource source = new FileSource(1000 * CHUNK_SIZE);
+        final CountDownLatch writing = new CountDownLatch(3);
+        SlowOutput out = new SlowOutput(5) {
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                super.write(buffer, offset, length);
+                writing.countDown();
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+        final BLEFileTransfer transfer = new BLEFileTransfer(source, out, CHUNK_SIZE, listener);
+        Thread thread = new Thread(transfer);
+        thread.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        transfer.cancel();
+        thread.join(5000);
+
+        assertTrue(transfer.isDone());
+        assertTrue(transfer.isCancelled());
+        assertEquals(-1, listener.mCompleted);
+        assertNull(listener.mError);
+        assertTrue(listener.mCancelled >= 3 * CHUNK_SIZE);
+        assertTrue(listener.mCancelled < source.mLength);
+        // Stops after the chunk in progress
+        assertEquals(listener.mCancelled, out.mWritten.size());
+        assertTrue(source.mClosed);
+    }
+
+    @Test
+    public void cancelBeforeStart() {
+        FileSource source = new FileSource(CHUNK_SIZE);
+        RecordingListener listener = new RecordingListener();
+        BLEFileTransfer transfer = new BLEFileTransfer(source, new SlowOutput(0), CHUNK_SIZE, listener);
+        transfer.cancel();
+        transfer.run();
+        assertEquals(0, listener.mCancelled);
+        assertEquals(-1, listener.mCompleted);
+        assertEquals(-1, transfer.getTotalBytes());
+    }
+
+    @Test
+    public void writeError() {
+        FileSource source = new FileSource(10 * CHUNK_SIZE);
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+        BLEFileTransfer transfer = new BLEFileTransfer(source, out, CHUNK_SIZE, listener);
+        transfer.run();
+        assertNotNull(listener.mError);
+        assertEquals(-1, listener.mCompleted);
+        assertEquals(0, transfer.getBytesSent());
+        assertTrue(transfer.isDone());
+        assertTrue(source.mClosed);
+    }
+}
@@ -0,0 +1,103 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BLEFlowControlTest {
+
+    @Test
+    public void windowLimitsInFlight() {
+        BLEFlowControl.Sender sender = new BLEFlowControl.Sender(4, 100);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(sender.canSend());
+            sender.onSent();
+        }
+        assertFalse(sender.canSend());
+        assertEquals(4, sender.getInFlight());
+        sender.onWriteComplete();
+        assertTrue(sender.canSend());
+        assertEquals(3, sender.getInFlight());
+    }
+
+    @Test
+    public void creditsLimitSent() {
+        BLEFlowControl.Sender sender = new BLEFlowControl.Sender(4, 2);
+        sender.onSent();
+        sender.onWriteComplete();
+        sender.onSent();
+        sender.onWriteComplete();
+        // Window free, but out of credits
+        assertEquals(0, sender.getInFlight());
+        assertFalse(sender.canSend());
+        sender.onCredits(1);
+        assertTrue(sender.canSend());
+        sender.onSent();
+        assertFalse(sender.canSend());
+    }
+
+    @Test
+    public void unlimitedIgnoresCreditsNotWindow() {
+        BLEFlowControl.Sender sender = new BLEFlowControl.Sender(2, 0);
+        assertFalse(sender.canSend());
+        sender.setUnlimited(true);
+        assertTrue(sender.canSend());
+        sender.onSent();
+        sender.onSent();
+        assertFalse(sender.canSend());
+        sender.onWriteComplete();
+        assertTrue(sender.canSend());
+    }
+
+    @Test
+    public void reset() {
+        BLEFlowControl.Sender sender = new BLEFlowControl.Sender(2, 3);
+        sender.setUnlimited(true);
+        sender.onSent();
+        sender.onSent();
+        sender.onWriteComplete();
+        sender.onWriteComplete();
+        // More completions than writes, after a disconnection
+        sender.onWriteComplete();
+        assertEquals(0, sender.getInFlight());
+        sender.onSent();
+        sender.reset();
+        assertEquals(0, sender.getInFlight());
+        assertEquals(3, sender.getCredits());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(sender.canSend());
+            sender.onSent();
+            sender.onWriteComplete();
+        }
+        assertFalse(sender.canSend());
+    }
+
+    @Test
+    public void receiverGrantsBatches() {
+        BLEFlowControl.Receiver receiver = new BLEFlowControl.Receiver(3);
+        BLEFlowControl.Sender sender = new BLEFlowControl.Sender(8, 3);
+        int sent = 0;
+        for (int i = 0; i < 30; i++) {
+            assertTrue(sender.canSend());
+            sender.onSent();
+            sender.onWriteComplete();
+            sent++;
+            int credits = receiver.onConsumed();
+            assertEquals(sent % 3 == 0 ? 3 : 0, credits);
+            if (credits > 0) {
+                sender.onCredits(credits);
+            }
+        }
+        assertEquals(3, sender.getCredits());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidWindow() {
+        new BLEFlowControl.Sender(0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBatch() {
+        new BLEFlowControl.Receiver(0);
+    }
+}
@@ -0,0 +1,297 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class BLEFrameCodecTest {
+
+    /**
+     * MTU 23, the default: 20 bytes per write or notification
+     */
+    private static final int FRAGMENT_SIZE = 23 - 3;
+    private static final int FIRST_PAYLOAD = FRAGMENT_SIZE - BLEFrameCodec.FIRST_HEADER_SIZE;
+    private static final int PAYLOAD = FRAGMENT_SIZE - BLEFrameCodec.HEADER_SIZE;
+
+    private static class Collector implements BLEFrameCodec.Decoder.Listener {
+        final List<byte[]> messages = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+
+        @Override
+        public void onMessage(byte[] buffer, int offset, int length) {
+            messages.add(BLEFrameCodec.copyOf(buffer, offset, length));
+        }
+
+        @Override
+        public void onError(String error) {
+            errors.add(error);
+        }
+    }
+
+    private static byte[] message(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static List<byte[]> encode(BLEFrameCodec.Encoder encoder, byte[] data) {
+        List<byte[]> fragments = new ArrayList<>();
+        encoder.begin(data);
+        while (encoder.hasNext()) {
+            fragments.add(encoder.next());
+        }
+        return fragments;
+    }
+
+    @Test
+    public void fragmentBoundaries() {
+        BLEFrameCodec.Encoder encoder = new BLEFrameCodec.Encoder(FRAGMENT_SIZE);
+        Collector collector = new Collector();
+        BLEFrameCodec.Decoder decoder = new BLEFrameCodec.Decoder(collector);
+        int[] lengths = {0, 1, FIRST_PAYLOAD - 1, FIRST_PAYLOAD, FIRST_PAYLOAD + 1,
+                FIRST_PAYLOAD + PAYLOAD - 1, FIRST_PAYLOAD + PAYLOAD, FIRST_PAYLOAD + PAYLOAD + 1,
+                FIRST_PAYLOAD + 10 * PAYLOAD, 1000};
+        for (int length : lengths) {
+            byte[] data = message(length);
+            List<byte[]> fragments = encode(encoder, data);
+            assertEquals("length " + length, BLEFrameCodec.getFragmentCount(length, FRAGMENT_SIZE),
+                    fragments.size());
+            for (int i = 0; i < fragments.size(); i++) {
+                byte[] fragment = fragments.get(i);
+                assertTrue(fragment.length <= FRAGMENT_SIZE);
+                assertEquals(i == 0, (fragment[0] & BLEFrameCodec.FLAG_FIRST) != 0);
+                assertEquals(i == fragments.size() - 1, (fragment[0] & BLEFrameCodec.FLAG_LAST) != 0);
+                if (i < fragments.size() - 1) {
+                    // Only the last one can be short
+                    assertEquals(FRAGMENT_SIZE, fragment.length);
+                }
+                assertTrue(decoder.decode(fragment));
+            }
+            assertEquals(1, collector.messages.size());
+            assertArrayEquals(data, collector.messages.remove(0));
+        }
+        assertEquals(1, BLEFrameCodec.getFragmentCount(FIRST_PAYLOAD, FRAGMENT_SIZE));
+        assertEquals(2, BLEFrameCodec.getFragmentCount(FIRST_PAYLOAD + 1, FRAGMENT_SIZE));
+        assertEquals(2, BLEFrameCodec.getFragmentCount(FIRST_PAYLOAD + PAYLOAD, FRAGMENT_SIZE));
+        assertEquals(3, BLEFrameCodec.getFragmentCount(FIRST_PAYLOAD + PAYLOAD + 1, FRAGMENT_SIZE));
+        assertTrue(collector.errors.isEmpty());
+    }
+
+    @Test
+    public void messageIdWraps() {
+        BLEFrameCodec.Encoder encoder = new BLEFrameCodec.Encoder(FRAGMENT_SIZE);
+        Collector collector = new Collector();
+        BLEFrameCodec.Decoder decoder = new BLEFrameCodec.Decoder(collector);
+        byte[] data = message(FIRST_PAYLOAD + PAYLOAD + 1);
+        for (int i = 1; i <= 300; i++) {
+            List<byte[]> fragments = encode(encoder, data);
+            for (byte[] fragment : fragments) {
+                assertEquals(i & 0xFF, fragment[1] & 0xFF);
+                assertTrue(decoder.decode(fragment));
+            }
+        }
+        assertEquals(300, collector.messages.size());
+        assertTrue(collector.errors.isEmpty());
+    }
+
+    @Test
+    public void largestMessage() {
+        // The sequence number of the last fragment is 0xFFFF, one more doesn't fit
+        int length = FIRST_PAYLOAD + (BLEFrameCodec.MAX_FRAGMENTS - 1) * PAYLOAD;
+        assertEquals(BLEFrameCodec.MAX_FRAGMENTS, BLEFrameCodec.getFragmentCount(length, FRAGMENT_SIZE));
+        BLEFrameCodec.Encoder encoder = new BLEFrameCodec.Encoder(FRAGMENT_SIZE);
+        Collector collector = new Collector();
+        BLEFrameCodec.Decoder decoder = new BLEFrameCodec.Decoder(collector);
+        byte[] data = message(length);
+        byte[] fragment = null;
+        encoder.begin(data);
+        while (encoder.hasNext()) {
+            fragment = encoder.next();
+            assertTrue(decoder.decode(fragment));
+        }
+        assertEquals(0xFF, fragment[2] & 0xFF);
+        assertEquals(0xFF, fragment[3] & 0xFF);
+        assertArrayEquals(data, collector.messages.get(0));
+
+        try {
+            encoder.begin(new byte[length + 1]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void creditFrames() {
+        byte[] credit = BLEFrameCodec.encodeCredit(0x1234);
+        assertEquals(BLEFrameCodec.HEADER_SIZE, credit.length);
+        assertTrue(BLEFrameCodec.isCredit(credit));
+        assertEquals(0x1234, BLEFrameCodec.getCredits(credit));
+        assertEquals(0xFFFF, BLEFrameCodec.getCredits(BLEFrameCodec.encodeCredit(0xFFFF)));
+        assertEquals(1, BLEFrameCodec.getCredits(BLEFrameCodec.encodeCredit(1)));
+        assertFalse(BLEFrameCodec.isCredit(null));
+        assertFalse(BLEFrameCodec.isCredit(new byte[]{(byte) BLEFrameCodec.FLAG_CREDIT, 0, 1}));
+
+        BLEFrameCodec.Encoder encoder = new BLEFrameCodec.Encoder(FRAGMENT_SIZE);
+        for (byte[] fragment : encode(encoder, message(100))) {
+            assertFalse(BLEFrameCodec.isCredit(fragment));
+        }
+        for (int credits : new int[]{0, -1, 0x10000}) {
+            try {
+                BLEFrameCodec.encodeCredit(credits);
+                fail("credits " + credits);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void creditFramesBetweenFragments() {
+        BLEFrameCodec.Encoder encoder = new BLEFrameCodec.Encoder(FRAGMENT_SIZE);
+        Collector collector = new Collector();
+        BLEFrameCodec.Decoder decoder = new BLEFrameCodec.Decoder(collector);
+        byte[] data = message(100);
+        for (byte[] fragment : encode(encoder, data)) {
+            assertTrue(decoder.decode(BLEFrameCodec.encodeCredit(8)));
+            assertTrue(decoder.decode(fragment));
+        }
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(data, collector.messages.get(0));
+        assertTrue(collector.errors.isEmpty());
+    }
+
+    @Test
+    public void compressedFlag() {
+        BLEFrameCodec.Encoder encoder = new BLEFrameCodec.Encoder(FRAGMENT_SIZE);
+        Collector collector = new Collector();
+        BLEFrameCodec.Decoder decoder = new BLEFrameCodec.Decoder(collector);
+        encoder.begin(message(100), true);
+        byte[] first = encoder.next();
+        assertTrue((first[0] & BLEFrameCodec.FLAG_COMPRESSED) != 0);
+        assertTrue(decoder.decode(first));
+        while (encoder.hasNext()) {
+            byte[] fragment = encoder.next();
+            assertEquals(0, fragment[0] & BLEFrameCodec.FLAG_COMPRESSED);
+            assertTrue(decoder.decode(fragment));
+        }
+        assertTrue(decoder.isCompressed());
+        for (byte[] fragment : encode(encoder, message(100))) {
+            assertEquals(0, fragment[0] & BLEFrameCodec.FLAG_COMPRESSED);
+            assertTrue(decoder.decode(fragment));
+        }
+        assertFalse(decoder.isCompressed());
+        assertEquals(2, collector.messages.size());
+    }
+
+    @Test
+    public void streamAcrossCompressionNegotiation() throws DataFormatException {
+        // Like the helpers: messages queued before the negotiation stay raw, even though
+        // their fragments are sent after it, those queued after it are compressed
+        final BLECompression compression = new BLECompression();
+        BLEFrameCodec.Encoder encoder = new BLEFrameCodec.Encoder(FRAGMENT_SIZE);
+        ArrayDeque<byte[]> queued = new ArrayDeque<>();
+        ArrayDeque<Boolean> queuedCompressed = new ArrayDeque<>();
+        List<byte[]> sent = new ArrayList<>();
+        // Raw data starting with the encoding bytes of BLECompression
+        byte[] zero = message(60);
+        zero[0] = BLECompression.ENCODING_RAW;
+        byte[] one = message(60);
+        one[0] = BLECompression.ENCODING_DEFLATE;
+        byte[] text = ("{\"type\":\"message\",\"text\":\"Hello, are you there? Thanks for the data\"}")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[][] raw = {zero, one, text};
+        for (byte[] data : raw) {
+            queued.add(data);
+            queuedCompressed.add(false);
+            sent.add(data);
+        }
+
+        final List<byte[]> received = new ArrayList<>();
+        final BLEFrameCodec.Decoder[] decoder = new BLEFrameCodec.Decoder[1];
+        decoder[0] = new BLEFrameCodec.Decoder(new BLEFrameCodec.Decoder.Listener() {
+            @Override
+            public void onMessage(byte[] buffer, int offset, int length) {
+                try {
+                    received.add(decoder[0].isCompressed() ? compression.decode(buffer, offset, length)
+                            : BLEFrameCodec.copyOf(buffer, offset, length));
+                } catch (DataFormatException e) {
+                    fail(e.toString());
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                fail(error);
+            }
+        });
+
+        // The first message is half sent when compression is negotiated
+        encoder.begin(queued.poll(), queuedCompressed.poll());
+        decoder[0].decode(encoder.next());
+        decoder[0].decode(encoder.next());
+        for (byte[] data : new byte[][]{text, zero, message(500)}) {
+            queued.add(compression.encode(data));
+            queuedCompressed.add(true);
+            sent.add(data);
+        }
+        while (encoder.hasNext() || !queued.isEmpty()) {
+            if (!encoder.hasNext()) {
+                encoder.begin(queued.poll(), queuedCompressed.poll());
+            }
+            decoder[0].decode(encoder.next());
+        }
+
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals("message " + i, sent.get(i), received.get(i));
+        }
+        compression.release();
+    }
+
+    @Test
+    public void lostFragment() {
+        BLEFrameCodec.Encoder encoder = new BLEFrameCodec.Encoder(FRAGMENT_SIZE);
+        Collector collector = new Collector();
+        BLEFrameCodec.Decoder decoder = new BLEFrameCodec.Decoder(collector);
+        List<byte[]> fragments = encode(encoder, message(100));
+        assertTrue(decoder.decode(fragments.get(0)));
+        assertFalse(decoder.decode(fragments.get(2)));
+        assertEquals(1, collector.errors.size());
+        // The rest of the broken message is rejected, the next one gets through
+        assertFalse(decoder.decode(fragments.get(3)));
+        byte[] data = message(50);
+        for (byte[] fragment : encode(encoder, data)) {
+            assertTrue(decoder.decode(fragment));
+        }
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(data, collector.messages.get(0));
+    }
+
+    @Test
+    public void malformedFragments() {
+        Collector collector = new Collector();
+        BLEFrameCodec.Decoder decoder = new BLEFrameCodec.Decoder(1000, collector);
+        assertFalse(decoder.decode(new byte[3]));
+        // First fragment without its length
+        assertFalse(decoder.decode(new byte[]{BLEFrameCodec.FLAG_FIRST, 1, 0, 0, 0}));
+        // Longer than the max message size
+        assertFalse(decoder.decode(new byte[]{BLEFrameCodec.FLAG_FIRST, 1, 0, 0, 0, 0, 0x03, (byte) 0xE9}));
+        // More data than announced
+        assertFalse(decoder.decode(new byte[]{BLEFrameCodec.FLAG_FIRST | BLEFrameCodec.FLAG_LAST, 1, 0, 0,
+                0, 0, 0, 1, 42, 43}));
+        // Less data than announced
+        assertFalse(decoder.decode(new byte[]{BLEFrameCodec.FLAG_FIRST | BLEFrameCodec.FLAG_LAST, 1, 0, 0,
+                0, 0, 0, 2, 42}));
+        assertEquals(5, collector.errors.size());
+        assertTrue(collector.messages.isEmpty());
+    }
+}
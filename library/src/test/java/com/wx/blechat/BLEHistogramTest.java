@@ -0,0 +1,74 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BLEHistogramTest {
+
+    @Test
+    public void buckets() {
+        assertEquals(0, BLEHistogram.getBucket(0));
+        assertEquals(1, BLEHistogram.getBucket(1));
+        assertEquals(2, BLEHistogram.getBucket(2));
+        assertEquals(2, BLEHistogram.getBucket(3));
+        assertEquals(3, BLEHistogram.getBucket(4));
+        for (int i = 1; i < 63; i++) {
+            long power = 1L << i;
+            assertEquals(i, BLEHistogram.getBucket(power - 1));
+            assertEquals(i + 1, BLEHistogram.getBucket(power));
+            assertEquals(power - 1, BLEHistogram.getBucketLimit(i));
+        }
+        assertEquals(BLEHistogram.BUCKETS - 1, BLEHistogram.getBucket(Long.MAX_VALUE));
+        assertEquals(0, BLEHistogram.getBucketLimit(0));
+        assertEquals(Long.MAX_VALUE, BLEHistogram.getBucketLimit(BLEHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void record() {
+        BLEHistogram histogram = new BLEHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        BLEHistogram.Snapshot snapshot = histogram.snapshot();
+        long[] buckets = snapshot.getBuckets();
+        assertEquals(2, buckets[0]);
+        assertEquals(1, buckets[1]);
+        assertEquals(1, buckets[BLEHistogram.BUCKETS - 1]);
+        assertEquals(4, snapshot.getCount());
+        assertEquals(Long.MAX_VALUE, snapshot.getMax());
+        assertEquals(Long.MAX_VALUE, snapshot.getPercentile(1));
+        assertEquals(1, snapshot.getPercentile(0.75));
+        assertEquals(0, snapshot.getPercentile(0.5));
+    }
+
+    @Test
+    public void percentiles() {
+        BLEHistogram histogram = new BLEHistogram();
+        assertEquals(0, histogram.snapshot().getPercentile(0.99));
+        assertEquals(0, histogram.snapshot().getMean(), 0);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        BLEHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(5050, snapshot.getSum());
+        assertEquals(50.5, snapshot.getMean(), 0);
+        // Upper bound of the bucket: 50 falls in [32, 63]
+        assertEquals(63, snapshot.getPercentile(0.5));
+        // Capped by the max, 99 falls in [64, 127]
+        assertEquals(100, snapshot.getPercentile(0.99));
+        // The lowest rank is 1, even for percentile 0
+        assertEquals(1, snapshot.getPercentile(0));
+        // Exactly on a power of 2
+        BLEHistogram powers = new BLEHistogram();
+        powers.record(64);
+        powers.record(64);
+        assertEquals(64, powers.snapshot().getPercentile(0.5));
+        // Snapshots are copies
+        long[] buckets = snapshot.getBuckets();
+        buckets[1] = 1000;
+        assertEquals(1, snapshot.getBuckets()[1]);
+    }
+}
@@ -0,0 +1,102 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BLEListenerListTest {
+
+    private interface Listener {
+        void onEvent(String event);
+    }
+
+    private static class Recorder implements Listener {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onEvent(String event) {
+            mEvents.add(event);
+        }
+    }
+
+    private static void fire(BLEListenerList<Listener> list, String event) {
+        for (Listener listener : list.array()) {
+            listener.onEvent(event);
+        }
+    }
+
+    @Test
+    public void addAndRemove() {
+        BLEListenerList<Listener> list = new BLEListenerList<>(Listener.class);
+        assertTrue(list.isEmpty());
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        list.add(first);
+        list.add(second);
+        assertArrayEquals(new Listener[]{first, second}, list.array());
+        fire(list, "a");
+        list.remove(first);
+        assertArrayEquals(new Listener[]{second}, list.array());
+        fire(list, "b");
+        assertEquals(1, first.mEvents.size());
+        assertEquals(2, second.mEvents.size());
+        list.remove(second);
+        assertTrue(list.isEmpty());
+    }
+
+    @Test
+    public void duplicateAdd() {
+        BLEListenerList<Listener> list = new BLEListenerList<>(Listener.class);
+        Recorder recorder = new Recorder();
+        list.add(recorder);
+        Listener[] before = list.array();
+        list.add(recorder);
+        // Not even copied
+        assertSame(before, list.array());
+        fire(list, "a");
+        assertEquals(1, recorder.mEvents.size());
+        list.remove(recorder);
+        assertTrue(list.isEmpty());
+    }
+
+    @Test
+    public void removeUnregistered() {
+        BLEListenerList<Listener> list = new BLEListenerList<>(Listener.class);
+        list.remove(new Recorder());
+        assertTrue(list.isEmpty());
+        Recorder recorder = new Recorder();
+        list.add(recorder);
+        Listener[] before = list.array();
+        list.remove(new Recorder());
+        list.remove(null);
+        assertSame(before, list.array());
+    }
+
+    @Test
+    public void removeDuringDispatch() {
+        final BLEListenerList<Listener> list = new BLEListenerList<>(Listener.class);
+        final Recorder last = new Recorder();
+        final Recorder added = new Recorder();
+        Listener remover = new Listener() {
+            @Override
+            public void onEvent(String event) {
+                // Takes effect on the next event, this one still reaches everybody
+                list.remove(this);
+                list.remove(last);
+                list.add(added);
+            }
+        };
+        list.add(remover);
+        list.add(last);
+        fire(list, "a");
+        assertEquals(1, last.mEvents.size());
+        assertTrue(added.mEvents.isEmpty());
+        assertArrayEquals(new Listener[]{added}, list.array());
+        fire(list, "b");
+        assertEquals(1, last.mEvents.size());
+        assertEquals(1, added.mEvents.size());
+    }
+}
@@ -0,0 +1,84 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class BLEMetricsTest {
+
+    @Test
+    public void countersSumTheStripes() throws Exception {
+        final BLEMetrics metrics = new BLEMetrics();
+        // More threads than stripes, so some of them share one
+        Thread[] threads = new Thread[9];
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        metrics.increment(BLEMetrics.MESSAGES_SENT);
+                        metrics.add(BLEMetrics.BYTES_SENT, 20);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(90000, metrics.get(BLEMetrics.MESSAGES_SENT));
+        assertEquals(1800000, metrics.get(BLEMetrics.BYTES_SENT));
+        // Counters don't bleed into each other
+        assertEquals(0, metrics.get(BLEMetrics.BYTES_RECEIVED));
+        assertEquals(0, metrics.get(BLEMetrics.RECONNECTS));
+    }
+
+    @Test
+    public void snapshot() {
+        BLEMetrics metrics = new BLEMetrics();
+        metrics.add(BLEMetrics.BYTES_SENT, 100);
+        metrics.add(BLEMetrics.BYTES_RECEIVED, 200);
+        metrics.increment(BLEMetrics.MESSAGES_SENT);
+        metrics.increment(BLEMetrics.MESSAGES_RECEIVED);
+        metrics.increment(BLEMetrics.MESSAGES_RECEIVED);
+        metrics.increment(BLEMetrics.WRITE_RETRIES);
+        metrics.increment(BLEMetrics.WRITE_FAILURES);
+        metrics.increment(BLEMetrics.GATT_BUSY);
+        metrics.increment(BLEMetrics.RECONNECTS);
+        metrics.recordWriteLatency(1000);
+        metrics.recordWriteLatency(3000);
+        metrics.recordConnectionSetup(400);
+        metrics.setMtu(247);
+
+        BLEMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(100, snapshot.getBytesSent());
+        assertEquals(200, snapshot.getBytesReceived());
+        assertEquals(1, snapshot.getMessagesSent());
+        assertEquals(2, snapshot.getMessagesReceived());
+        assertEquals(1, snapshot.getWriteRetries());
+        assertEquals(1, snapshot.getWriteFailures());
+        assertEquals(1, snapshot.getGattBusy());
+        assertEquals(1, snapshot.getReconnects());
+        assertEquals(snapshot.getBytesSent(), snapshot.get(BLEMetrics.BYTES_SENT));
+        assertEquals(247, snapshot.getMtu());
+        assertEquals(2, snapshot.getWriteLatency().getCount());
+        assertEquals(4000, snapshot.getWriteLatency().getSum());
+        assertEquals(400, snapshot.getConnectionSetup().getMax());
+
+        // A snapshot doesn't change afterwards
+        metrics.add(BLEMetrics.BYTES_SENT, 100);
+        metrics.recordWriteLatency(5);
+        assertEquals(100, snapshot.getBytesSent());
+        assertEquals(2, snapshot.getWriteLatency().getCount());
+        assertEquals(200, metrics.snapshot().getBytesSent());
+    }
+}
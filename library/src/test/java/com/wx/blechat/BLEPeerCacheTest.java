@@ -0,0 +1,61 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BLEPeerCacheTest {
+
+    @Test
+    public void encodeDecode() {
+        BLEPeerCache.Peer peer = new BLEPeerCache.Peer("00:11:22:33:44:55", "3,deflate", "Chat, with commas", 185, 1234567890123L);
+        BLEPeerCache.Peer decoded = BLEPeerCache.decode(peer.getAddress(), BLEPeerCache.encode(peer));
+        assertNotNull(decoded);
+        assertEquals("3,deflate", decoded.getVersion());
+        assertEquals("Chat, with commas", decoded.getDescription());
+        assertEquals(185, decoded.getMtu());
+        assertEquals(1234567890123L, decoded.getLastSeen());
+
+        BLEPeerCache.Peer empty = BLEPeerCache.decode("a", BLEPeerCache.encode(new BLEPeerCache.Peer("a", "", "", 23, 0)));
+        assertNotNull(empty);
+        assertEquals("", empty.getVersion());
+        assertEquals("", empty.getDescription());
+    }
+
+    @Test
+    public void malformed() {
+        assertNull(BLEPeerCache.decode("a", ""));
+        assertNull(BLEPeerCache.decode("a", "23,0"));
+        assertNull(BLEPeerCache.decode("a", "x,0,1,v"));
+        assertNull(BLEPeerCache.decode("a", "23,0,5,v"));
+        assertNull(BLEPeerCache.decode("a", "23,0,-2,v"));
+    }
+
+    @Test
+    public void expiry() {
+        BLEPeerCache cache = new BLEPeerCache(null, 4, 1000);
+        cache.put(new BLEPeerCache.Peer("a", "1", "A", 23, 100));
+        assertNotNull(cache.get("a", 1100));
+        assertNull(cache.get("a", 1101));
+        // Dropped for good
+        assertNull(cache.get("a", 100));
+    }
+
+    @Test
+    public void evictsLeastRecentlySeen() {
+        BLEPeerCache cache = new BLEPeerCache(null, 2, 1000);
+        cache.put(new BLEPeerCache.Peer("a", "1", "A", 23, 1));
+        cache.put(new BLEPeerCache.Peer("b", "1", "B", 23, 2));
+        // Seen again, b is now the oldest
+        cache.put(new BLEPeerCache.Peer("a", "1", "A", 185, 3));
+        cache.put(new BLEPeerCache.Peer("c", "1", "C", 23, 4));
+        assertNull(cache.get("b", 4));
+        List<BLEPeerCache.Peer> peers = cache.getPeers();
+        assertEquals(2, peers.size());
+        assertEquals("c", peers.get(0).getAddress());
+        assertEquals("a", peers.get(1).getAddress());
+        assertEquals(185, peers.get(1).getMtu());
+    }
+}
@@ -0,0 +1,58 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BLEPreparedWritesTest {
+
+    @Test
+    public void assemblesByOffset() {
+        BLEPreparedWrites<String> writes = new BLEPreparedWrites<>(1024);
+        byte[] message = new byte[300];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        for (int offset = 0; offset < message.length; offset += 18) {
+            int length = Math.min(18, message.length - offset);
+            assertEquals(BLEGattConstants.GATT_SUCCESS,
+                    writes.prepare("message", offset, Arrays.copyOfRange(message, offset, offset + length)));
+        }
+        // A part sent again overwrites what was there
+        assertEquals(BLEGattConstants.GATT_SUCCESS, writes.prepare("message", 18, Arrays.copyOfRange(message, 18, 36)));
+        assertEquals(BLEGattConstants.GATT_SUCCESS, writes.prepare("version", 0, new byte[]{1}));
+        assertEquals(301, writes.size());
+
+        Map<String, byte[]> values = writes.take();
+        Iterator<Map.Entry<String, byte[]>> iterator = values.entrySet().iterator();
+        Map.Entry<String, byte[]> first = iterator.next();
+        assertEquals("message", first.getKey());
+        assertArrayEquals(message, first.getValue());
+        assertArrayEquals(new byte[]{1}, iterator.next().getValue());
+        assertEquals(0, writes.size());
+        assertTrue(writes.take().isEmpty());
+    }
+
+    @Test
+    public void rejectsGaps() {
+        BLEPreparedWrites<String> writes = new BLEPreparedWrites<>(1024);
+        assertEquals(BLEGattConstants.GATT_INVALID_OFFSET, writes.prepare("message", 1, new byte[10]));
+        assertEquals(BLEGattConstants.GATT_SUCCESS, writes.prepare("message", 0, new byte[10]));
+        assertEquals(BLEGattConstants.GATT_INVALID_OFFSET, writes.prepare("message", 11, new byte[10]));
+        assertEquals(BLEGattConstants.GATT_SUCCESS, writes.prepare("message", 10, new byte[10]));
+    }
+
+    @Test
+    public void enforcesMaxSize() {
+        BLEPreparedWrites<String> writes = new BLEPreparedWrites<>(100);
+        assertEquals(BLEGattConstants.GATT_SUCCESS, writes.prepare("message", 0, new byte[60]));
+        assertEquals(BLEGattConstants.GATT_INVALID_ATTR_LEN, writes.prepare("version", 0, new byte[41]));
+        assertEquals(BLEGattConstants.GATT_SUCCESS, writes.prepare("version", 0, new byte[40]));
+        writes.clear();
+        assertEquals(BLEGattConstants.GATT_SUCCESS, writes.prepare("message", 0, new byte[100]));
+    }
+}
@@ -0,0 +1,49 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BLEReadValuesTest {
+
+    private static final UUID STATUS_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void longRead() {
+        BLEReadValues values = new BLEReadValues();
+        byte[] status = new byte[1000];
+        for (int i = 0; i < status.length; i++) {
+            status[i] = (byte) i;
+        }
+        values.put(STATUS_UUID, status);
+        // Published values are copies
+        status[0] = 42;
+        assertEquals(0, values.get(STATUS_UUID)[0]);
+        status[0] = 0;
+
+        // Read like a Central with a 23 bytes MTU: from the offset of every part
+        byte[] value = values.get(STATUS_UUID);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] part;
+        do {
+            part = BLEReadValues.read(value, read.size(), 22);
+            assertNotNull(part);
+            assertTrue(part.length <= 22);
+            read.write(part, 0, part.length);
+        } while (part.length == 22);
+        assertArrayEquals(status, read.toByteArray());
+    }
+
+    @Test
+    public void offsets() {
+        byte[] value = {1, 2, 3};
+        assertSame(value, BLEReadValues.read(value, 0, 22));
+        assertArrayEquals(new byte[]{3}, BLEReadValues.read(value, 2, 22));
+        assertArrayEquals(new byte[0], BLEReadValues.read(value, 3, 22));
+        assertNull(BLEReadValues.read(value, 4, 22));
+        assertNull(BLEReadValues.read(value, -1, 22));
+    }
+}
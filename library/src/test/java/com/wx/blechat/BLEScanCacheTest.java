@@ -0,0 +1,87 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BLEScanCacheTest {
+
+    private static final String A = "00:11:22:33:44:0A";
+    private static final String B = "00:11:22:33:44:0B";
+    private static final String C = "00:11:22:33:44:0C";
+
+    @Test
+    public void updateResults() {
+        BLEScanCache cache = new BLEScanCache(8, 10000, 0.5f);
+        assertEquals(BLEScanCache.NEW_DEVICE, cache.update(null, A, -60, 0));
+        // Same RSSI, nothing to report
+        assertEquals(BLEScanCache.UNCHANGED, cache.update(null, A, -60, 100));
+        // -60 + 0.5 * (-63 + 60) = -61.5, below the threshold
+        assertEquals(BLEScanCache.UNCHANGED, cache.update(null, A, -63, 200));
+        // -61.5 + 0.5 * (-64 + 61.5) = -62.75, 2.75 dBm from the last report
+        assertEquals(BLEScanCache.CHANGED, cache.update(null, A, -64, 300));
+        // Compared to the last report, not to the first sample
+        assertEquals(BLEScanCache.UNCHANGED, cache.update(null, A, -64, 400));
+        assertEquals(BLEScanCache.NEW_DEVICE, cache.update(null, B, -80, 400));
+    }
+
+    @Test
+    public void smoothedRssi() {
+        BLEScanCache cache = new BLEScanCache(8, 10000, 0.25f);
+        cache.update(null, A, -70, 0);
+        // A single outlier barely moves it
+        cache.update(null, A, -30, 100);
+        BLEScanRecord record = cache.snapshot().get(0);
+        assertEquals(-30, record.getRssi());
+        assertEquals(-60, record.getSmoothedRssi(), 0.001);
+        // Converges to a steady value
+        for (int i = 0; i < 100; i++) {
+            cache.update(null, A, -50, 200 + i);
+        }
+        record = cache.snapshot().get(0);
+        assertEquals(-50, record.getSmoothedRssi(), 0.01);
+        assertEquals(102, record.getCount());
+        assertEquals(0, record.getFirstSeen());
+        assertEquals(299, record.getLastSeen());
+        assertEquals(A, record.getAddress());
+    }
+
+    @Test
+    public void lruEviction() {
+        BLEScanCache cache = new BLEScanCache(2, 10000, 0.5f);
+        cache.update(null, A, -60, 0);
+        cache.update(null, B, -60, 100);
+        // A seen again, B is now the least recently seen
+        cache.update(null, A, -60, 200);
+        assertEquals(BLEScanCache.NEW_DEVICE, cache.update(null, C, -60, 300));
+        assertEquals(2, cache.size());
+        List<BLEScanRecord> records = cache.snapshot();
+        assertEquals(A, records.get(0).getAddress());
+        assertEquals(C, records.get(1).getAddress());
+        // Evicted, so it's new again
+        assertEquals(BLEScanCache.NEW_DEVICE, cache.update(null, B, -60, 400));
+    }
+
+    @Test
+    public void expiry() {
+        BLEScanCache cache = new BLEScanCache(8, 1000, 0.5f);
+        cache.update(null, A, -60, 0);
+        cache.update(null, B, -60, 500);
+        assertFalse(cache.evictExpired(1000));
+        assertTrue(cache.evictExpired(1001));
+        assertEquals(1, cache.size());
+        assertEquals(B, cache.snapshot().get(0).getAddress());
+        // Longer expiry for duty cycled scans
+        assertFalse(cache.evictExpired(5000, 5000));
+        assertTrue(cache.evictExpired(5501, 5000));
+        assertEquals(0, cache.size());
+        assertEquals(BLEScanCache.NEW_DEVICE, cache.update(null, A, -60, 6000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidAlpha() {
+        new BLEScanCache(8, 1000, 0);
+    }
+}
@@ -0,0 +1,134 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class BLESerialExecutorTest {
+
+    @Test
+    public void keepsOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        BLESerialExecutor[] executors = {new BLESerialExecutor(pool), new BLESerialExecutor(pool)};
+        final List<List<Integer>> ran = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(2000);
+        for (int e = 0; e < executors.length; e++) {
+            ran.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        for (int i = 0; i < 1000; i++) {
+            for (int e = 0; e < executors.length; e++) {
+                final List<Integer> list = ran.get(e);
+                final int task = i;
+                executors[e].execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        list.add(task);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+        for (List<Integer> list : ran) {
+            assertEquals(1000, list.size());
+            for (int i = 0; i < list.size(); i++) {
+                assertEquals(i, (int) list.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void slowQueueDoesNotBlockOthers() throws Exception {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        BLESerialExecutor slow = new BLESerialExecutor(pool);
+        BLESerialExecutor fast = new BLESerialExecutor(pool);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fastDone = new CountDownLatch(1);
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch slowDone = new CountDownLatch(1);
+        slow.execute(new Runnable() {
+            @Override
+            public void run() {
+                slowStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        slow.execute(new Runnable() {
+            @Override
+            public void run() {
+                slowDone.countDown();
+            }
+        });
+        fast.execute(new Runnable() {
+            @Override
+            public void run() {
+                fastDone.countDown();
+            }
+        });
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+        assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, slow.getPendingCount());
+        release.countDown();
+        assertTrue(slowDone.await(5, TimeUnit.SECONDS));
+        assertEquals(0, slow.getPendingCount());
+        pool.shutdown();
+    }
+
+    @Test
+    public void shutdownDropsPendingTasks() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        BLESerialExecutor executor = new BLESerialExecutor(pool);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+        release.countDown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertEquals(0, executor.getPendingCount());
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Not stuck queuing forever
+        }
+        assertEquals(0, executor.getPendingCount());
+    }
+}
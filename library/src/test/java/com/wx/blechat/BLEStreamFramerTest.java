@@ -0,0 +1,123 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BLEStreamFramerTest {
+
+    private final List<byte[]> mMessages = new ArrayList<>();
+    private final List<Integer> mTypes = new ArrayList<>();
+    private final List<String> mErrors = new ArrayList<>();
+    private final BLEStreamFramer.Decoder mDecoder = new BLEStreamFramer.Decoder(1 << 20,
+            new BLEStreamFramer.Decoder.Listener() {
+                @Override
+                public void onMessage(int type, BLEBuffer message) {
+                    mTypes.add(type);
+                    mMessages.add(message.toByteArray());
+                }
+
+                @Override
+                public void onError(String error) {
+                    mErrors.add(error);
+                }
+            });
+
+    @Test
+    public void headerSize() {
+        assertEquals(2, BLEStreamFramer.getHeaderSize(0));
+        assertEquals(2, BLEStreamFramer.getHeaderSize(127));
+        assertEquals(3, BLEStreamFramer.getHeaderSize(128));
+        assertEquals(BLEStreamFramer.MAX_HEADER_SIZE, BLEStreamFramer.getHeaderSize(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void anySplit() {
+        byte[][] messages = {message(0), message(1), message(127), message(128), message(3000)};
+        byte[] stream = stream(messages);
+        for (int split = 0; split <= stream.length; split++) {
+            mMessages.clear();
+            mTypes.clear();
+            mDecoder.decode(BLEBuffer.wrap(stream, 0, split));
+            mDecoder.decode(BLEBuffer.wrap(stream, split, stream.length - split));
+            assertReceived(messages);
+        }
+        assertTrue(mErrors.isEmpty());
+    }
+
+    @Test
+    public void byteByByte() {
+        byte[][] messages = {message(5), message(0), message(300)};
+        byte[] stream = stream(messages);
+        for (int i = 0; i < stream.length; i++) {
+            mDecoder.decode(BLEBuffer.wrap(stream, i, 1));
+        }
+        assertReceived(messages);
+    }
+
+    @Test
+    public void slicesShareTheBuffer() {
+        BLEBufferPool pool = new BLEBufferPool(64, 1);
+        BLEBuffer buffer = pool.acquire();
+        byte[] stream = stream(new byte[][]{message(10), message(20)});
+        System.arraycopy(stream, 0, buffer.array(), 0, stream.length);
+        buffer.setSlice(0, stream.length);
+        final List<BLEBuffer> kept = new ArrayList<>();
+        new BLEStreamFramer.Decoder(new BLEStreamFramer.Decoder.Listener() {
+            @Override
+            public void onMessage(int type, BLEBuffer message) {
+                kept.add(message.retain());
+            }
+
+            @Override
+            public void onError(String error) {
+                fail(error);
+            }
+        }).decode(buffer);
+        assertEquals(2, kept.size());
+        assertSame(buffer.array(), kept.get(0).array());
+        assertArrayEquals(message(20), kept.get(1).toByteArray());
+
+        buffer.release();
+        assertEquals(0, pool.getPooledCount());
+        kept.get(0).release();
+        kept.get(1).release();
+        assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test
+    public void tooBig() {
+        byte[] header = new byte[BLEStreamFramer.MAX_HEADER_SIZE];
+        int size = BLEStreamFramer.putHeader(header, 0, BLEStreamFramer.TYPE_DATA, 2 << 20);
+        assertFalse(mDecoder.decode(BLEBuffer.wrap(header, 0, size)));
+        assertEquals(1, mErrors.size());
+    }
+
+    private void assertReceived(byte[][] messages) {
+        assertEquals(messages.length, mMessages.size());
+        for (int i = 0; i < messages.length; i++) {
+            assertEquals(i, (int) mTypes.get(i));
+            assertArrayEquals(messages[i], mMessages.get(i));
+        }
+    }
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        Arrays.fill(message, (byte) length);
+        return message;
+    }
+
+    private static byte[] stream(byte[][] messages) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < messages.length; i++) {
+            byte[] frame = BLEStreamFramer.encode(i, messages[i]);
+            stream.write(frame, 0, frame.length);
+        }
+        return stream.toByteArray();
+    }
+}
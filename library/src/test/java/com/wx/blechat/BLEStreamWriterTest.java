@@ -0,0 +1,136 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BLEStreamWriterTest {
+
+    /**
+     * Counts the stream writes, optionally blocking them until released
+     */
+    private static class CountingStream extends OutputStream {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final AtomicInteger mWrites = new AtomicInteger();
+        final CountDownLatch mRelease;
+        volatile boolean mBroken = false;
+
+        CountingStream(CountDownLatch release) {
+            mRelease = release;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] data, int offset, int length) throws IOException {
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (mBroken) {
+                throw new IOException("Broken pipe");
+            }
+            mWrites.incrementAndGet();
+            mBytes.write(data, offset, length);
+        }
+    }
+
+    private static class Counter implements BLETransport.Completion {
+        final AtomicInteger mSucceeded = new AtomicInteger();
+        final AtomicInteger mFailed = new AtomicInteger();
+        final CountDownLatch mDone;
+
+        Counter(int expected) {
+            mDone = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onComplete(boolean success) {
+            (success ? mSucceeded : mFailed).incrementAndGet();
+            mDone.countDown();
+        }
+    }
+
+    @Test
+    public void coalescesInOrder() throws Exception {
+        CountingStream stream = new CountingStream(new CountDownLatch(0));
+        BLEStreamWriter writer = new BLEStreamWriter(stream, "test", 64 * 1024, 1024, 50);
+        BLEMetrics metrics = new BLEMetrics();
+        writer.setMetrics(metrics);
+        Counter counter = new Counter(200);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[i % 40 + 1];
+            data[0] = (byte) i;
+            expected.write(data);
+            assertTrue(writer.offer(data, counter));
+        }
+        assertTrue(counter.mDone.await(5, TimeUnit.SECONDS));
+        writer.close();
+
+        assertEquals(200, counter.mSucceeded.get());
+        assertArrayEquals(expected.toByteArray(), stream.mBytes.toByteArray());
+        // About 4 KB in batches of 1 KB
+        assertTrue("writes: " + stream.mWrites.get(), stream.mWrites.get() <= 6);
+        assertEquals(200, metrics.snapshot().getMessagesSent());
+        assertEquals(expected.size(), metrics.snapshot().getBytesSent());
+    }
+
+    @Test
+    public void bigWritesGoAlone() throws Exception {
+        CountingStream stream = new CountingStream(new CountDownLatch(0));
+        BLEStreamWriter writer = new BLEStreamWriter(stream, "test", 64 * 1024, 1024, 0);
+        Counter counter = new Counter(3);
+        writer.offer(new byte[10], counter);
+        writer.offer(new byte[5000], counter);
+        writer.offer(new byte[10], counter);
+        assertTrue(counter.mDone.await(5, TimeUnit.SECONDS));
+        writer.close();
+        assertEquals(5020, stream.mBytes.size());
+    }
+
+    @Test
+    public void backpressure() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountingStream stream = new CountingStream(release);
+        BLEStreamWriter writer = new BLEStreamWriter(stream, "test", 100, 10, 0);
+        Counter counter = new Counter(Integer.MAX_VALUE);
+        int accepted = 0;
+        while (writer.offer(new byte[10], counter)) {
+            accepted++;
+            assertTrue(accepted < 100);
+        }
+        // The queue plus the batch stuck in the stream
+        assertTrue(accepted >= 10 && accepted <= 11);
+        release.countDown();
+        assertTrue(writer.write(new byte[10], counter));
+        writer.close();
+    }
+
+    @Test
+    public void failureFailsEverything() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountingStream stream = new CountingStream(release);
+        stream.mBroken = true;
+        BLEStreamWriter writer = new BLEStreamWriter(stream, "test", 1000, 10, 0);
+        Counter counter = new Counter(5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(writer.offer(new byte[10], counter));
+        }
+        release.countDown();
+        assertTrue(counter.mDone.await(5, TimeUnit.SECONDS));
+        assertEquals(5, counter.mFailed.get());
+        assertFalse(writer.offer(new byte[10], counter));
+    }
+}
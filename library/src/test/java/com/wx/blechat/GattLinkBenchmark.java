@@ -0,0 +1,390 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput and latency of every send path over a {@link SimulatedGattLink}.
+ * <p>
+ * Each path runs the same logic as the helpers, with the same library classes:
+ * <ul>
+ * <li>message: BLECentralHelper.send(), one write with response at a time</li>
+ * <li>notify: BLEPeripheralHelper.send(), one notification at a time</li>
+ * <li>stream: BLECentralHelper.sendData(), fragments written without response under
+ * credit based flow control, one at a time through the operation queue, credits notified
+ * back by the Peripheral</li>
+ * <li>stream+deflate: the same, with negotiated compression</li>
+ * </ul>
+ * Latency goes from the moment a message starts being sent to its delivery, so queueing
+ * behind other messages isn't counted. The asserts only catch gross regressions, the
+ * results are written to {@link #RESULT_FILE} to compare runs.
+ */
+public class GattLinkBenchmark {
+
+    private static final int MESSAGES = 500;
+    private static final int STREAM_MESSAGE_SIZE = 1024;
+    private static final long TIME_LIMIT = 3600L * 1000000L;
+    /**
+     * Relative to the working directory of the tests, the module directory under Gradle
+     */
+    private static final String RESULT_FILE = "build/reports/gatt-link-benchmark.txt";
+
+    @Test
+    public void benchmark() throws Exception {
+        SimulatedGattLink.Config[] configs = {
+                new SimulatedGattLink.Config().setMtu(23),
+                new SimulatedGattLink.Config().setMtu(185),
+                new SimulatedGattLink.Config().setMtu(247),
+                new SimulatedGattLink.Config().setMtu(247).setLossRate(0.05).setBusyRate(0.02),
+                new SimulatedGattLink.Config().setMtu(517).setConnectionInterval(30000),
+        };
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-16s %10s %12s %10s %10s%n", "path", "msg/s", "bytes/s", "p50 ms", "p99 ms"));
+        for (SimulatedGattLink.Config config : configs) {
+            report.append(config).append('\n');
+            Result message = run(new MessagePath(), config, 0);
+            Result notify = run(new NotifyPath(), config, 0);
+            Result stream = run(new StreamPath(false), config, STREAM_MESSAGE_SIZE);
+            Result deflate = run(new StreamPath(true), config, STREAM_MESSAGE_SIZE);
+            for (Result result : new Result[]{message, notify, stream, deflate}) {
+                report.append(result).append('\n');
+            }
+            // Streaming without response must beat a write with response per message, and
+            // keep up with notifications despite the fragment headers
+            assertTrue(config + ": stream slower than message",
+                    stream.getBytesPerSecond() > message.getBytesPerSecond());
+            assertTrue(config + ": stream slower than notify",
+                    stream.getBytesPerSecond() >= notify.getBytesPerSecond());
+            // Chat text compresses, it has to pay off
+            assertTrue(config + ": deflate slower than stream",
+                    deflate.getBytesPerSecond() > stream.getBytesPerSecond());
+        }
+        writeReport(report.toString());
+    }
+
+    @Test
+    public void biggerMtuIsFaster() throws Exception {
+        Result small = run(new StreamPath(false), new SimulatedGattLink.Config().setMtu(23), STREAM_MESSAGE_SIZE);
+        Result big = run(new StreamPath(false), new SimulatedGattLink.Config().setMtu(247), STREAM_MESSAGE_SIZE);
+        assertTrue(big.getBytesPerSecond() > 5 * small.getBytesPerSecond());
+    }
+
+    private static void writeReport(String report) throws IOException {
+        File file = new File(RESULT_FILE);
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.print(report);
+        }
+    }
+
+    private static Result run(SendPath path, SimulatedGattLink.Config config, int messageSize) throws Exception {
+        SimulatedGattLink link = new SimulatedGattLink(config);
+        if (messageSize == 0) {
+            messageSize = link.getPayloadSize();
+        }
+        byte[][] messages = new byte[MESSAGES][];
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = newChatText(i, messageSize);
+        }
+        Result result = new Result(path.getName(), MESSAGES);
+        path.start(link, messages, result);
+        assertTrue(path.getName() + " didn't finish", link.run(TIME_LIMIT));
+        assertEquals(path.getName() + " lost messages", MESSAGES, result.mDelivered);
+        return result;
+    }
+
+    private static final String[] WORDS = {
+            "hello", "are", "you", "there", "thanks", "see", "later", "ok", "meeting", "at",
+            "the", "station", "tomorrow", "morning", "battery", "low", "sending", "photos", "now",
+            "where", "is", "Alice", "Bob", "coffee", "lunch", "train", "late", "sorry", "great",
+            "weekend", "plans", "call", "me", "when", "free", "?", "!", "42", "17:30", "gate"
+    };
+
+    /**
+     * Deterministic JSON chat message of the given size
+     */
+    private static byte[] newChatText(int id, int size) {
+        Random random = new Random(id);
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"id\":").append(id).append(",\"type\":\"message\",\"text\":\"");
+        while (builder.length() < size) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return Arrays.copyOf(builder.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    private static class Result {
+        final String mName;
+        final long[] mLatencies;
+        int mDelivered;
+        long mBytes;
+        long mFinished;
+
+        Result(String name, int messages) {
+            mName = name;
+            mLatencies = new long[messages];
+        }
+
+        void onDelivered(int index, byte[] expected, byte[] data, long started, long now) {
+            assertArrayEquals(expected, data);
+            mLatencies[index] = now - started;
+            mDelivered++;
+            mBytes += data.length;
+            mFinished = now;
+        }
+
+        double getBytesPerSecond() {
+            return mBytes * 1000000.0 / mFinished;
+        }
+
+        double getPercentile(double percentile) {
+            long[] sorted = Arrays.copyOf(mLatencies, mDelivered);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(percentile * sorted.length) - 1] / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-16s %10.1f %12.0f %10.2f %10.2f", mName,
+                    mDelivered * 1000000.0 / mFinished, getBytesPerSecond(),
+                    getPercentile(0.5), getPercentile(0.99));
+        }
+    }
+
+    private static abstract class SendPath {
+        abstract String getName();
+
+        abstract void start(SimulatedGattLink link, byte[][] messages, Result result);
+    }
+
+    /**
+     * Sends values in order like the operation and notification queues of the helpers do:
+     * one outstanding at a time, the next one sent when the previous completes
+     * (onCharacteristicWrite / onNotificationSent), the rejected ones retried while the
+     * stack is busy
+     */
+    private static class Outbox implements Runnable {
+        private final SimulatedGattLink mLink;
+        private final SimulatedGattLink.Direction mDirection;
+        private final boolean mWithResponse;
+        private final ArrayDeque<Pending> mQueue = new ArrayDeque<>();
+        private boolean mRetryScheduled = false;
+        private boolean mInFlight = false;
+
+        Outbox(SimulatedGattLink link, SimulatedGattLink.Direction direction, boolean withResponse) {
+            mLink = link;
+            mDirection = direction;
+            mWithResponse = withResponse;
+        }
+
+        void send(byte[] value, SimulatedGattLink.Completion completion) {
+            mQueue.add(new Pending(value, completion));
+            if (!mRetryScheduled && !mInFlight) {
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            mRetryScheduled = false;
+            final Pending head = mQueue.peek();
+            if (head == null) {
+                return;
+            }
+            boolean sent = mDirection.send(head.mValue, mWithResponse, new SimulatedGattLink.Completion() {
+                @Override
+                public void onComplete() {
+                    mInFlight = false;
+                    if (head.mCompletion != null) {
+                        head.mCompletion.onComplete();
+                    }
+                    if (!mRetryScheduled && !mInFlight) {
+                        Outbox.this.run();
+                    }
+                }
+            });
+            if (sent) {
+                mQueue.poll();
+                mInFlight = true;
+            } else {
+                mRetryScheduled = true;
+                mLink.schedule(mLink.getConfig().mOperationLatency, this);
+            }
+        }
+
+        private static class Pending {
+            final byte[] mValue;
+            final SimulatedGattLink.Completion mCompletion;
+
+            Pending(byte[] value, SimulatedGattLink.Completion completion) {
+                mValue = value;
+                mCompletion = completion;
+            }
+        }
+    }
+
+    /**
+     * One message per value, the next one sent when the previous completes
+     */
+    private static class OneAtATimePath extends SendPath {
+        private final String mName;
+        private final boolean mFromCentral;
+        private final boolean mWithResponse;
+        private int mNext = 0;
+        private long mStarted;
+
+        OneAtATimePath(String name, boolean fromCentral, boolean withResponse) {
+            mName = name;
+            mFromCentral = fromCentral;
+            mWithResponse = withResponse;
+        }
+
+        @Override
+        String getName() {
+            return mName;
+        }
+
+        @Override
+        void start(final SimulatedGattLink link, final byte[][] messages, final Result result) {
+            final SimulatedGattLink.Direction direction =
+                    mFromCentral ? link.centralToPeripheral() : link.peripheralToCentral();
+            final Outbox outbox = new Outbox(link, direction, mWithResponse);
+            direction.setReceiver(new SimulatedGattLink.Receiver() {
+                private int mReceived = 0;
+
+                @Override
+                public void onReceive(byte[] value) {
+                    int index = mReceived++;
+                    result.onDelivered(index, messages[index], value, mStarted, link.now());
+                }
+            });
+            new SimulatedGattLink.Completion() {
+                @Override
+                public void onComplete() {
+                    if (mNext < messages.length) {
+                        mStarted = link.now();
+                        outbox.send(messages[mNext++], this);
+                    }
+                }
+            }.onComplete();
+        }
+    }
+
+    private static class MessagePath extends OneAtATimePath {
+        MessagePath() {
+            super("message", true, true);
+        }
+    }
+
+    private static class NotifyPath extends OneAtATimePath {
+        NotifyPath() {
+            super("notify", false, false);
+        }
+    }
+
+    private static class StreamPath extends SendPath {
+        private final boolean mCompress;
+        private final BLECompression mCompression = new BLECompression();
+        private final BLEFlowControl.Sender mFlowSender =
+                new BLEFlowControl.Sender(BLEChatProfile.STREAM_WINDOW, BLEChatProfile.STREAM_INITIAL_CREDITS);
+        private final BLEFlowControl.Receiver mFlowReceiver = new BLEFlowControl.Receiver(BLEChatProfile.STREAM_CREDIT_BATCH);
+        private final ArrayDeque<Long> mStartTimes = new ArrayDeque<>();
+        private BLEFrameCodec.Encoder mEncoder;
+        private Outbox mFragments;
+        private int mNext = 0;
+
+        StreamPath(boolean compress) {
+            mCompress = compress;
+        }
+
+        @Override
+        String getName() {
+            return mCompress ? "stream+deflate" : "stream";
+        }
+
+        @Override
+        void start(final SimulatedGattLink link, final byte[][] messages, final Result result) {
+            mEncoder = new BLEFrameCodec.Encoder(link.getPayloadSize());
+            mFragments = new Outbox(link, link.centralToPeripheral(), false);
+            final Outbox credits = new Outbox(link, link.peripheralToCentral(), false);
+            final BLEFrameCodec.Decoder decoder = new BLEFrameCodec.Decoder(new BLEFrameCodec.Decoder.Listener() {
+                private int mReceived = 0;
+
+                @Override
+                public void onMessage(byte[] buffer, int offset, int length) {
+                    byte[] data = BLEFrameCodec.copyOf(buffer, offset, length);
+                    if (mCompress) {
+                        try {
+                            data = mCompression.decode(data);
+                        } catch (DataFormatException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                    int index = mReceived++;
+                    result.onDelivered(index, messages[index], data, mStartTimes.poll(), link.now());
+                }
+
+                @Override
+                public void onError(String error) {
+                    throw new AssertionError(error);
+                }
+            });
+            // Peripheral: reassemble and grant credits back
+            link.centralToPeripheral().setReceiver(new SimulatedGattLink.Receiver() {
+                @Override
+                public void onReceive(byte[] value) {
+                    decoder.decode(value);
+                    int granted = mFlowReceiver.onConsumed();
+                    if (granted > 0) {
+                        credits.send(BLEFrameCodec.encodeCredit(granted), null);
+                    }
+                }
+            });
+            // Central: credits arrive as notifications
+            link.peripheralToCentral().setReceiver(new SimulatedGattLink.Receiver() {
+                @Override
+                public void onReceive(byte[] value) {
+                    mFlowSender.onCredits(BLEFrameCodec.getCredits(value));
+                    pump(link, messages);
+                }
+            });
+            pump(link, messages);
+        }
+
+        private void pump(final SimulatedGattLink link, final byte[][] messages) {
+            while (mFlowSender.canSend()) {
+                if (!mEncoder.hasNext()) {
+                    if (mNext == messages.length) {
+                        return;
+                    }
+                    mStartTimes.add(link.now());
+                    byte[] data = messages[mNext++];
+                    mEncoder.begin(mCompress ? mCompression.encode(data) : data);
+                }
+                mFlowSender.onSent();
+                mFragments.send(mEncoder.next(), new SimulatedGattLink.Completion() {
+                    @Override
+                    public void onComplete() {
+                        mFlowSender.onWriteComplete();
+                        pump(link, messages);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.wx.blechat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the compression layer over a {@link BLELoopbackTransport} pair, at full speed.
+ */
+public class LoopbackTransportTest {
+
+    private static final int MESSAGES = 20000;
+
+    @Test
+    public void deliversInOrder() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        BLELoopbackTransport[] pair = BLELoopbackTransport.newPair(BLEChatProfile.MAX_MTU, executor);
+        final BLECompression sender = new BLECompression();
+        final BLECompression receiver = new BLECompression();
+        final List<byte[]> received = new ArrayList<>();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger connected = new AtomicInteger();
+        pair[0].setListener(new CountingListener(connected));
+        pair[1].setListener(new CountingListener(connected) {
+            @Override
+            public void onReceive(BLETransport transport, byte[] data) {
+                try {
+                    received.add(receiver.decode(data));
+                } catch (DataFormatException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        pair[0].connect();
+        Random random = new Random(1);
+        byte[][] messages = new byte[MESSAGES][];
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = new byte[random.nextInt(2048)];
+            Arrays.fill(messages[i], (byte) ('a' + i % 26));
+            pair[0].send(sender.encode(messages[i]), new BLETransport.Completion() {
+                @Override
+                public void onComplete(boolean success) {
+                    assertTrue(success);
+                    completed.incrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(2, connected.get());
+        assertEquals(MESSAGES, completed.get());
+        assertEquals(MESSAGES, received.size());
+        for (int i = 0; i < MESSAGES; i++) {
+            assertArrayEquals(messages[i], received.get(i));
+        }
+    }
+
+    @Test
+    public void closeFailsSends() {
+        BLELoopbackTransport[] pair = BLELoopbackTransport.newPair(BLEChatProfile.DEFAULT_MTU);
+        final AtomicInteger connected = new AtomicInteger();
+        pair[0].setListener(new CountingListener(connected));
+        pair[1].setListener(new CountingListener(connected));
+        pair[0].connect();
+        assertTrue(pair[1].isConnected());
+
+        pair[1].close();
+        assertEquals(0, connected.get());
+        assertFalse(pair[0].isConnected());
+        final boolean[] result = {true};
+        pair[0].send(new byte[1], new BLETransport.Completion() {
+            @Override
+            public void onComplete(boolean success) {
+                result[0] = success;
+            }
+        });
+        assertFalse(result[0]);
+        pair[0].connect();
+        assertFalse(pair[0].isConnected());
+    }
+
+    private static class CountingListener implements BLETransport.Listener {
+        private final AtomicInteger mConnected;
+
+        CountingListener(AtomicInteger connected) {
+            mConnected = connected;
+        }
+
+        @Override
+        public void onConnected(BLETransport transport) {
+            mConnected.incrementAndGet();
+        }
+
+        @Override
+        public void onReceive(BLETransport transport, byte[] data) {
+        }
+
+        @Override
+        public void onDisconnected(BLETransport transport) {
+            mConnected.decrementAndGet();
+        }
+
+        @Override
+        public void onError(BLETransport transport, String error) {
+            fail(error);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.wx.blechat;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * In-memory model of a GATT connection, to run the send/receive logic of the helpers on a
+ * plain JVM.
+ * <p>
+ * Time is simulated, so runs are fast and deterministic for a given seed. The link works
+ * like the real one in connection events: every connection interval each direction can
+ * carry up to packetsPerEvent packets. A lost packet is retransmitted in the next event,
+ * as the link layer does. Values longer than MTU - 3 bytes are rejected, and a write can
+ * be rejected as if the stack were busy, either randomly or because the controller buffer
+ * is full.
+ * <p>
+ * Writes with response complete one connection event after being delivered, the time the
+ * response takes to come back. Writes without response complete as soon as the controller
+ * buffers them, like onCharacteristicWrite() does on Android, so several of them can go out
+ * in the same connection event. Notifications complete once transmitted. Every delivery
+ * and completion also pays the per operation latency.
+ */
+public class SimulatedGattLink {
+
+    public interface Receiver {
+        void onReceive(byte[] value);
+    }
+
+    public interface Completion {
+        void onComplete();
+    }
+
+    public static class Config {
+        int mMtu = BLEChatProfile.DEFAULT_MTU;
+        long mConnectionInterval = 7500;
+        int mPacketsPerEvent = 4;
+        int mBufferPackets = 16;
+        long mOperationLatency = 500;
+        double mLossRate = 0;
+        double mBusyRate = 0;
+        long mSeed = 1;
+
+        public Config setMtu(int mtu) {
+            mMtu = mtu;
+            return this;
+        }
+
+        /**
+         * @param micros Connection interval, 7500 to 4000000 micros
+         */
+        public Config setConnectionInterval(long micros) {
+            mConnectionInterval = micros;
+            return this;
+        }
+
+        public Config setPacketsPerEvent(int packets) {
+            mPacketsPerEvent = packets;
+            return this;
+        }
+
+        /**
+         * @param packets Packets the controller can hold per direction before rejecting writes
+         */
+        public Config setBufferPackets(int packets) {
+            mBufferPackets = packets;
+            return this;
+        }
+
+        public Config setOperationLatency(long micros) {
+            mOperationLatency = micros;
+            return this;
+        }
+
+        /**
+         * @param rate Probability of a packet needing a retransmission
+         */
+        public Config setLossRate(double rate) {
+            mLossRate = rate;
+            return this;
+        }
+
+        /**
+         * @param rate Probability of a write being rejected as if the stack were busy
+         */
+        public Config setBusyRate(double rate) {
+            mBusyRate = rate;
+            return this;
+        }
+
+        public Config setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "MTU " + mMtu + ", interval " + mConnectionInterval / 1000f + " ms, "
+                    + mPacketsPerEvent + " packets/event, loss " + mLossRate + ", busy " + mBusyRate;
+        }
+    }
+
+    private final Config mConfig;
+    private final Random mRandom;
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+    private final Direction mCentralToPeripheral;
+    private final Direction mPeripheralToCentral;
+    private long mNow = 0;
+    private long mSequence = 0;
+
+    public SimulatedGattLink(Config config) {
+        mConfig = config;
+        mRandom = new Random(config.mSeed);
+        mCentralToPeripheral = new Direction(true);
+        mPeripheralToCentral = new Direction(false);
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Max size of a value written or notified in one operation
+     */
+    public int getPayloadSize() {
+        return mConfig.mMtu - BLEChatProfile.ATT_HEADER_SIZE;
+    }
+
+    /**
+     * Writes from the Central, received by the Peripheral
+     */
+    public Direction centralToPeripheral() {
+        return mCentralToPeripheral;
+    }
+
+    /**
+     * Notifications from the Peripheral, received by the Central
+     */
+    public Direction peripheralToCentral() {
+        return mPeripheralToCentral;
+    }
+
+    /**
+     * Current simulated time, in micros
+     */
+    public long now() {
+        return mNow;
+    }
+
+    public void schedule(long delay, Runnable task) {
+        mEvents.add(new Event(mNow + delay, mSequence++, task));
+    }
+
+    /**
+     * Runs events until there are none left or the time limit is reached
+     *
+     * @return false if the time limit was reached
+     */
+    public boolean run(long limit) {
+        Event event;
+        while ((event = mEvents.poll()) != null) {
+            if (event.mTime > limit) {
+                mEvents.add(event);
+                return false;
+            }
+            mNow = event.mTime;
+            event.mTask.run();
+        }
+        return true;
+    }
+
+    private long nextConnectionEvent() {
+        long interval = mConfig.mConnectionInterval;
+        return (mNow / interval + 1) * interval;
+    }
+
+    public class Direction {
+        // Writes of the Central, notifications otherwise
+        private final boolean mWrites;
+        private final ArrayDeque<Packet> mPending = new ArrayDeque<>();
+        private Receiver mReceiver;
+        private boolean mEventScheduled = false;
+        private long mPackets = 0;
+        private long mRetransmissions = 0;
+        private long mRejected = 0;
+
+        Direction(boolean writes) {
+            mWrites = writes;
+        }
+
+        public void setReceiver(Receiver receiver) {
+            mReceiver = receiver;
+        }
+
+        /**
+         * @return false if the value was rejected: too long, stack busy or buffer full
+         */
+        public boolean send(byte[] value, boolean withResponse, Completion completion) {
+            if (value.length > getPayloadSize()
+                    || mPending.size() >= mConfig.mBufferPackets
+                    || mRandom.nextDouble() < mConfig.mBusyRate) {
+                mRejected++;
+                return false;
+            }
+            if (mWrites && !withResponse && completion != null) {
+                // Buffered, the write is done as far as the Central can tell
+                final Completion buffered = completion;
+                completion = null;
+                schedule(mConfig.mOperationLatency, new Runnable() {
+                    @Override
+                    public void run() {
+                        buffered.onComplete();
+                    }
+                });
+            }
+            mPending.add(new Packet(value, withResponse, completion));
+            if (!mEventScheduled) {
+                mEventScheduled = true;
+                mEvents.add(new Event(nextConnectionEvent(), mSequence++, mConnectionEvent));
+            }
+            return true;
+        }
+
+        public long getPackets() {
+            return mPackets;
+        }
+
+        public long getRetransmissions() {
+            return mRetransmissions;
+        }
+
+        public long getRejected() {
+            return mRejected;
+        }
+
+        private final Runnable mConnectionEvent = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < mConfig.mPacketsPerEvent && !mPending.isEmpty(); i++) {
+                    if (mRandom.nextDouble() < mConfig.mLossRate) {
+                        // Retransmitted in the next event, in order
+                        mRetransmissions++;
+                        break;
+                    }
+                    final Packet packet = mPending.poll();
+                    mPackets++;
+                    schedule(mConfig.mOperationLatency, new Runnable() {
+                        @Override
+                        public void run() {
+                            mReceiver.onReceive(packet.mValue);
+                        }
+                    });
+                    if (packet.mCompletion != null) {
+                        long delay = mConfig.mOperationLatency;
+                        if (packet.mWithResponse) {
+                            delay += mConfig.mConnectionInterval;
+                        }
+                        schedule(delay, new Runnable() {
+                            @Override
+                            public void run() {
+                                packet.mCompletion.onComplete();
+                            }
+                        });
+                    }
+                }
+                if (mPending.isEmpty()) {
+                    mEventScheduled = false;
+                } else {
+                    mEvents.add(new Event(nextConnectionEvent(), mSequence++, this));
+                }
+            }
+        };
+    }
+
+    private static class Packet {
+        final byte[] mValue;
+        final boolean mWithResponse;
+        final Completion mCompletion;
+
+        Packet(byte[] value, boolean withResponse, Completion completion) {
+            mValue = value;
+            mWithResponse = withResponse;
+            mCompletion = completion;
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long mTime;
+        final long mSequence;
+        final Runnable mTask;
+
+        Event(long time, long sequence, Runnable task) {
+            mTime = time;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}